@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading every class of a jar through a fresh class loader, as happens while the implementation starts up, with
+ * and without {@link ClassPreloader} replaying the same classes alongside. The jar is built from the classes JMH
+ * itself ships, so the class files are real ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ClassLoadingBenchmark {
+    private File jar;
+    private List<String> classes;
+
+    @Setup
+    public void setup() throws IOException {
+        jar = File.createTempFile("helios-bench", ".jar");
+        classes = Synthetic.classJar(jar);
+    }
+
+    @TearDown
+    public void tearDown() {
+        jar.delete();
+    }
+
+    @Benchmark
+    public void urlClassLoader(Blackhole blackhole) throws IOException {
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{jar.toURI().toURL()}, null)) {
+            loadAll(loader, blackhole);
+        }
+    }
+
+    @Benchmark
+    public void implClassLoader(Blackhole blackhole) throws IOException {
+        loadAll(new ImplClassLoader(JarIndex.open(jar)), blackhole);
+    }
+
+    /**
+     * The startup thread's view of a launch which replays a recording: the same classes in the same order, with
+     * the preloader loading them in the background from the moment the loader exists.
+     */
+    @Benchmark
+    public void preloadedImplClassLoader(Blackhole blackhole) throws IOException {
+        ClassLoader loader = new ImplClassLoader(JarIndex.open(jar));
+        ClassPreloader.replay(classes, loader);
+        loadAll(loader, blackhole);
+    }
+
+    private void loadAll(ClassLoader loader, Blackhole blackhole) {
+        for (String name : classes) {
+            try {
+                blackhole.consume(Class.forName(name, false, loader));
+            } catch (ClassNotFoundException | LinkageError e) {
+                // Some classes depend on libraries which aren't in the jar, which costs both loaders the same
+                blackhole.consume(e);
+            }
+        }
+    }
+}
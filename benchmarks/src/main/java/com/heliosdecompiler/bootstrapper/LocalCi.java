@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A stand-in for the CI server on loopback, serving a directory laid out like the Jenkins job.
+ */
+class LocalCi implements Closeable {
+    private final File root;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    LocalCi(File root) throws IOException {
+        this.root = root;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Local CI");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Publishes builds 1 to {@code builds}, each with its jar, the patch from the build before and their checksums.
+     */
+    static LocalCi chain(File root, int builds, int entries, int entrySize) throws IOException {
+        String jarName = "helios-" + Bootstrapper.IMPLEMENTATION_VERSION + ".jar";
+        File previous = null;
+        for (int build = 1; build <= builds; build++) {
+            File target = new File(root, build + "/artifact/target");
+            File jar = Synthetic.write(new File(target, jarName), Synthetic.jar(build, entries, entrySize));
+            checksum(jar);
+            if (previous != null) {
+                checksum(Synthetic.patch(previous, jar, new File(target, "delta.patch")));
+            }
+            Synthetic.write(new File(root, build + "/api/json"), ("{\"building\":false,\"result\":\"SUCCESS\",\"artifacts\":["
+                    + "{\"fileName\":\"" + jarName + "\"},{\"fileName\":\"delta.patch\"}]}").getBytes(StandardCharsets.UTF_8));
+            previous = jar;
+        }
+        byte[] latest = String.valueOf(builds).getBytes(StandardCharsets.UTF_8);
+        Synthetic.write(new File(root, "lastStableBuild/buildNumber"), latest);
+        Synthetic.write(new File(root, "lastSuccessfulBuild/buildNumber"), latest);
+        Synthetic.write(new File(root, "lastSuccessfulBuild/artifact/target/" + jarName), Files.readAllBytes(previous.toPath()));
+        return new LocalCi(root);
+    }
+
+    private static void checksum(File file) throws IOException {
+        String line = ArtifactStore.hash(file) + "  " + file.getName() + "\n";
+        Synthetic.write(new File(file.getAbsolutePath() + ".sha256"), line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    File getRoot() {
+        return root;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            File file = new File(root, path);
+            if (path.contains("..") || !file.isFile()) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(file.length()));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, file.length());
+            try (OutputStream out = exchange.getResponseBody()) {
+                Files.copy(file.toPath(), out);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding out which build is installed, which {@code loadHelios()} does on every launch: from the launch index
+ * when the jar hasn't changed, otherwise by opening the jar and parsing its manifest. {@link #alternatingInstalls}
+ * launches two channels in turn, which only hits the index if each install keeps a record of its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ManifestBenchmark {
+    /**
+     * Opening a jar reads its whole central directory, so the cost grows with the number of entries
+     */
+    @Param({"1000", "10000"})
+    public int entries;
+
+    private File dataDir;
+    private File jar;
+    private File otherJar;
+    private File indexFile;
+    private LaunchIndex index;
+    private boolean other;
+
+    @Setup
+    public void setup() throws IOException {
+        dataDir = Synthetic.isolate(null);
+        jar = Synthetic.write(new File(dataDir, "helios-" + Bootstrapper.IMPLEMENTATION_VERSION + ".jar"), Synthetic.jar(1, entries, 512));
+        HeliosData data = Bootstrapper.readManifest(jar);
+        if (data == null) {
+            throw new IllegalStateException("Synthetic jar has no usable manifest");
+        }
+        indexFile = new File(dataDir, "launch.idx");
+        index = LaunchIndex.load(indexFile);
+        index.setImplementation(jar, data);
+
+        File otherInstall = new File(dataDir, "other");
+        if (!otherInstall.mkdirs()) {
+            throw new IOException("Could not create " + otherInstall);
+        }
+        otherJar = Synthetic.write(new File(otherInstall, jar.getName()), Synthetic.jar(2, entries, 512));
+        index.setImplementation(otherJar, Bootstrapper.readManifest(otherJar));
+    }
+
+    @TearDown
+    public void tearDown() {
+        Synthetic.delete(dataDir.getParentFile());
+    }
+
+    @Benchmark
+    public HeliosData launchIndex() {
+        return index.getImplementation(jar);
+    }
+
+    @Benchmark
+    public HeliosData jarManifest() {
+        return Bootstrapper.readManifest(jar);
+    }
+
+    /**
+     * What each launch does when two channels are launched in turn: load the index, and on a miss read the manifest
+     * and record it
+     */
+    @Benchmark
+    public HeliosData alternatingInstalls() throws IOException {
+        other = !other;
+        File install = other ? otherJar : jar;
+        LaunchIndex launch = LaunchIndex.load(indexFile);
+        HeliosData data = launch.getImplementation(install);
+        if (data == null) {
+            data = Bootstrapper.readManifest(install);
+            launch.setImplementation(install, data);
+        }
+        return data;
+    }
+}
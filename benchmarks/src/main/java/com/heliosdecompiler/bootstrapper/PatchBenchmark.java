@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import net.dongliu.vcdiff.VcdiffDecoder;
+import net.dongliu.vcdiff.exception.VcdiffDecodeException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applying one build's delta patch to the jar of the build before it, through {@link VcdiffPatcher} and through
+ * the jvcdiff decoder it replaced, and applying the same change as an {@link EntryPatch}. The patcher and the entry
+ * patch also hash what they write, as every update needs that anyway.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = "-Xmx512m")
+public class PatchBenchmark {
+    /**
+     * With 2KB entries these are jars of roughly 2MB and 8MB once deflated
+     */
+    @Param({"4000", "16000"})
+    public int entries;
+
+    private File directory;
+    private File source;
+    private File patch;
+    private File entryPatch;
+    private File target;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("helios-bench").toFile();
+        source = Synthetic.write(new File(directory, "source.jar"), Synthetic.jar(1, entries, 2048));
+        File next = Synthetic.write(new File(directory, "target.jar"), Synthetic.jar(2, entries, 2048));
+        patch = Synthetic.patch(source, next, new File(directory, "delta.patch"));
+        entryPatch = new File(directory, EntryPatch.NAME);
+        EntryPatch.create(source, next, entryPatch);
+        target = new File(directory, "decoded.jar");
+    }
+
+    @TearDown
+    public void tearDown() {
+        Synthetic.delete(directory);
+    }
+
+    @Benchmark
+    public String patcher() throws IOException, VcdiffDecodeException {
+        return Transfers.decode(source, patch, target);
+    }
+
+    @Benchmark
+    public String entryPatch() throws IOException, VcdiffDecodeException {
+        return EntryPatch.apply(source, null, entryPatch, target);
+    }
+
+    @Benchmark
+    public long jvcdiffDecoder() throws IOException, VcdiffDecodeException {
+        target.delete();
+        VcdiffDecoder.decode(source, patch, target);
+        return target.length();
+    }
+}
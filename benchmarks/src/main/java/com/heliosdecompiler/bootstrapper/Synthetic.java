@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import net.dongliu.vcdiff.VcdiffEncoder;
+import net.dongliu.vcdiff.exception.VcdiffEncodeException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Generates the jars, patches and data directories the benchmarks run against, so results don't depend on what
+ * the CI server currently publishes.
+ */
+final class Synthetic {
+    /**
+     * Every build changes one in this many entries, which is roughly what a commit to the implementation does
+     */
+    private static final int CHANGE_PERIOD = 50;
+
+    private static final byte[][] TOKENS = new byte[256][];
+
+    static {
+        // Class files are mostly constant pool strings and short opcode runs, so they compress about as well as
+        // text built from a small vocabulary
+        Random random = new Random(0);
+        for (int i = 0; i < TOKENS.length; i++) {
+            TOKENS[i] = new byte[4 + random.nextInt(12)];
+            random.nextBytes(TOKENS[i]);
+        }
+    }
+
+    private Synthetic() {
+    }
+
+    /**
+     * Points the bootstrapper at a scratch data directory and turns off everything which would outlive a benchmark
+     * iteration. Must be called before {@link Bootstrapper} is initialized.
+     */
+    static File isolate(String ciUrl) throws IOException {
+        File home = Files.createTempDirectory("helios-bench").toFile();
+        System.setProperty("user.home", home.getAbsolutePath());
+        System.setProperty("com.heliosdecompiler.isDebugging", "true");
+        System.setProperty("com.heliosdecompiler.daemon", "false");
+        System.setProperty("com.heliosdecompiler.cds", "false");
+        if (ciUrl != null) {
+            System.setProperty("com.heliosdecompiler.ciUrl", ciUrl);
+        }
+        return new File(home, ".helios");
+    }
+
+    /**
+     * @return an implementation jar of the given build with {@code entries} entries of about {@code entrySize} bytes
+     */
+    static byte[] jar(int buildNumber, int entries, int entrySize) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Implementation-Version", String.valueOf(buildNumber));
+        manifest.getMainAttributes().putValue("Version", Bootstrapper.IMPLEMENTATION_VERSION);
+        manifest.getMainAttributes().putValue("Main-Class", "com.heliosdecompiler.synthetic.Main");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JarOutputStream jar = new JarOutputStream(out, manifest)) {
+            for (int i = 0; i < entries; i++) {
+                jar.putNextEntry(new JarEntry("com/heliosdecompiler/synthetic/C" + i + ".class"));
+                jar.write(content(i, lastChange(i, buildNumber), entrySize));
+                jar.closeEntry();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static int lastChange(int entry, int buildNumber) {
+        int offset = entry % CHANGE_PERIOD;
+        return buildNumber < offset ? 0 : buildNumber - (buildNumber - offset) % CHANGE_PERIOD;
+    }
+
+    private static byte[] content(int entry, int revision, int size) {
+        Random random = new Random(entry * 31L + revision);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 16);
+        while (out.size() < size) {
+            byte[] token = TOKENS[random.nextInt(TOKENS.length)];
+            out.write(token, 0, token.length);
+        }
+        return out.toByteArray();
+    }
+
+    static File write(File file, byte[] data) throws IOException {
+        file.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    static File patch(File source, File target, File dest) throws IOException {
+        try {
+            VcdiffEncoder.encode(source, target, dest);
+        } catch (VcdiffEncodeException e) {
+            throw new IOException("Could not encode " + dest, e);
+        }
+        return dest;
+    }
+
+    /**
+     * Copies every class of the jar JMH was loaded from into {@code dest}, which gives a jar of real class files
+     * that nothing else on the class path shares.
+     *
+     * @return the names of the copied classes
+     */
+    static List<String> classJar(File dest) throws IOException {
+        File source;
+        try {
+            source = new File(org.openjdk.jmh.Main.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        List<String> names = new ArrayList<>();
+        try (JarFile jar = new JarFile(source);
+             JarOutputStream out = new JarOutputStream(new FileOutputStream(dest))) {
+            byte[] buffer = new byte[64 * 1024];
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!name.endsWith(".class") || name.startsWith("META-INF/") || name.equals("module-info.class")) {
+                    continue;
+                }
+                out.putNextEntry(new JarEntry(name));
+                try (InputStream in = jar.getInputStream(entry)) {
+                    int amnt;
+                    while ((amnt = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, amnt);
+                    }
+                }
+                out.closeEntry();
+                names.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+            }
+        }
+        return names;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a response body to disk. {@link #streamCopy} is the 4KB buffer loop downloads used to go through, and
+ * {@link #transfer} is {@link Transfers#download}, with and without hashing on the way.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+    @State(Scope.Benchmark)
+    public static class Source {
+        @Param({"1048576", "16777216"})
+        public int size;
+
+        /**
+         * memory for a stream which never blocks, file for one backed by a system call per read
+         */
+        @Param({"memory", "file"})
+        public String stream;
+
+        byte[] data;
+        File file;
+        File dest;
+
+        @Setup
+        public void setup() throws IOException {
+            data = new byte[size];
+            new Random(0).nextBytes(data);
+            file = Synthetic.write(File.createTempFile("helios-bench", ".src"), data);
+            dest = File.createTempFile("helios-bench", ".dst");
+        }
+
+        InputStream open() throws IOException {
+            return stream.equals("memory") ? new ByteArrayInputStream(data) : new FileInputStream(file);
+        }
+
+        @TearDown
+        public void tearDown() {
+            file.delete();
+            dest.delete();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Buffer {
+        @Param({"4096", "65536"})
+        public int bufferSize;
+    }
+
+    @Benchmark
+    public long streamCopy(Source source, Buffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.bufferSize];
+        long total = 0;
+        try (InputStream in = source.open();
+             OutputStream out = new FileOutputStream(source.dest)) {
+            int n;
+            while ((n = in.read(bytes)) != -1) {
+                out.write(bytes, 0, n);
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long transfer(Source source) throws IOException {
+        return Transfers.download(source.open(), source.dest, null);
+    }
+
+    @Benchmark
+    public byte[] transferAndHash(Source source) throws IOException {
+        MessageDigest digest = ArtifactStore.sha256();
+        Transfers.download(source.open(), source.dest, null, digest);
+        return digest.digest();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import net.dongliu.vcdiff.exception.VcdiffDecodeException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole {@code --Xforceupdate} from build 1 to the latest build of a local CI stand-in: metadata, planning,
+ * downloading and verifying every patch, decoding, and switching the store over. Each measurement starts again
+ * from a freshly installed build 1.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class UpdateBenchmark {
+    @Param({"5", "20"})
+    public int builds;
+
+    /**
+     * cold throws the metadata cache away before every update, warm keeps what the previous update fetched
+     */
+    @Param({"cold", "warm"})
+    public String cache;
+
+    private File ciRoot;
+    private LocalCi ci;
+    private File dataDir;
+    private File firstBuild;
+
+    @Setup
+    public void setup() throws IOException {
+        ciRoot = Files.createTempDirectory("helios-ci").toFile();
+        ci = LocalCi.chain(ciRoot, builds, 4000, 2048);
+        dataDir = Synthetic.isolate(ci.getUrl());
+        firstBuild = new File(ciRoot, "1/artifact/target/helios-" + Bootstrapper.IMPLEMENTATION_VERSION + ".jar");
+    }
+
+    @Setup(Level.Iteration)
+    public void install() throws IOException {
+        File impl = new File(dataDir, "helios-" + Bootstrapper.IMPLEMENTATION_VERSION + ".jar");
+        dataDir.mkdirs();
+        // The installed jar is a link into the store, so replace it rather than write through it
+        impl.delete();
+        Files.copy(firstBuild.toPath(), impl.toPath());
+        // Measured rates would make the planner choose differently from one iteration to the next
+        new File(dataDir, "update-stats.properties").delete();
+        if (cache.equals("cold")) {
+            Synthetic.delete(new File(dataDir, "cache"));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        ci.close();
+        Synthetic.delete(ciRoot);
+        Synthetic.delete(dataDir.getParentFile());
+    }
+
+    @Benchmark
+    public void forceUpdate() throws IOException, VcdiffDecodeException {
+        String failure = Bootstrapper.update();
+        if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+    }
+}
@@ -0,0 +1,486 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * A content-addressed store of implementation jars and patches, keyed by SHA-256.
+ * <p>
+ * The implementation file in the data directory is a hard link to one of the stored jars, so backing up the
+ * current build, switching to a freshly patched one or rolling back are all a single atomic rename. Objects are
+ * evicted least recently used first once there are more than {@code com.heliosdecompiler.store.maxBuilds} jars or
+ * they take up more than {@code com.heliosdecompiler.store.maxBytes}.
+ * <p>
+ * Several installs can link to the same store. Each keeps its own active, previous and staged build; installs other
+ * than the one at the top of the data directory are told apart by the name of the directory they are in.
+ * <p>
+ * Several processes can use the store at once, such as an update running next to a mirror or a second launch. Every
+ * change to the index is made under a lock on {@code index.lock}, on top of what is on disk at that moment, so one
+ * process never writes back a stale copy over what another recorded.
+ */
+class ArtifactStore {
+    private static final int MAX_BUILDS = Integer.getInteger("com.heliosdecompiler.store.maxBuilds", 5);
+    private static final long MAX_BYTES = Long.getLong("com.heliosdecompiler.store.maxBytes", 256L * 1024 * 1024);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final File objects;
+    private final File indexFile;
+    private final File lockFile;
+    // Replaced whenever it is reloaded, so readers on other threads never see it half loaded
+    private volatile Properties index = new Properties();
+
+    ArtifactStore(File dataDirectory) throws IOException {
+        this.directory = new File(dataDirectory, "store");
+        this.objects = new File(directory, "objects");
+        this.indexFile = new File(directory, "index.properties");
+        this.lockFile = new File(directory, "index.lock");
+        if (!objects.exists() && !objects.mkdirs()) {
+            throw new IOException("Could not create " + objects.getAbsolutePath());
+        }
+        reload();
+    }
+
+    File object(String hash) {
+        return new File(objects, hash);
+    }
+
+    /**
+     * @return the hash of the jar stored for the given build, or null
+     */
+    String getBuild(int buildNumber) {
+        String hash = index.getProperty("build." + buildNumber);
+        return hash != null && object(hash).exists() ? hash : null;
+    }
+
+    /**
+     * @param name the published name of the patch, {@code delta.patch} or {@code entries.patch}
+     * @return the hash of the patch which produced the given build, or null
+     */
+    String getPatch(int buildNumber, String name) {
+        String hash = index.getProperty(patchKey(buildNumber, name));
+        return hash != null && object(hash).exists() ? hash : null;
+    }
+
+    /**
+     * @return the build number of the newest stored jar older than {@code buildNumber}, or -1
+     */
+    int getNearestBuild(int buildNumber) {
+        int nearest = -1;
+        for (String key : index.stringPropertyNames()) {
+            if (key.startsWith("build.")) {
+                int stored = Integer.parseInt(key.substring("build.".length()));
+                if (stored < buildNumber && stored > nearest && getBuild(stored) != null) {
+                    nearest = stored;
+                }
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * @return the hash of the jar that was active in {@code target}'s install before the current one, or null
+     */
+    String getPrevious(File target) {
+        String hash = index.getProperty(installKey("previous", target));
+        return hash != null && object(hash).exists() ? hash : null;
+    }
+
+    /**
+     * @return the build number a stored jar was recorded under, or -1
+     */
+    int getBuildNumber(String hash) {
+        for (String key : index.stringPropertyNames()) {
+            if (key.startsWith("build.") && index.getProperty(key).equals(hash)) {
+                return Integer.parseInt(key.substring("build.".length()));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Links a stored object to {@code dest}, which can then be used and deleted like any other file.
+     */
+    void checkout(String hash, File dest) throws IOException {
+        dest.delete();
+        link(object(hash), dest);
+    }
+
+    /**
+     * Creates a scratch file inside the store, so it can be moved into place without copying.
+     */
+    File createTempFile() throws IOException {
+        return File.createTempFile("incoming", ".tmp", directory);
+    }
+
+    /**
+     * Records a file which is already in use, such as the active implementation, by linking it into the store.
+     * Nothing is hashed if the file is already linked to the object recorded for the build.
+     */
+    String adopt(File file, int buildNumber) throws IOException {
+        String known = getBuild(buildNumber);
+        if (known != null && Files.isSameFile(file.toPath(), object(known).toPath())) {
+            return update(() -> {
+                touch(known);
+                return known;
+            });
+        }
+        String hash = hash(file);
+        File object = object(hash);
+        if (!object.exists()) {
+            File temp = createTempFile();
+            temp.delete();
+            link(file, temp);
+            Files.move(temp.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        return update(() -> {
+            index.setProperty("build." + buildNumber, hash);
+            touch(hash);
+            return hash;
+        });
+    }
+
+    /**
+     * Moves a finished jar into the store. {@code file} no longer exists afterwards.
+     *
+     * @param hash the SHA-256 of {@code file}, computed while it was written
+     */
+    String put(File file, int buildNumber, String hash) throws IOException {
+        moveIn(file, hash);
+        return update(() -> {
+            index.setProperty("build." + buildNumber, hash);
+            touch(hash);
+            return hash;
+        });
+    }
+
+    /**
+     * Keeps the patch which produced the given build. {@code file} no longer exists afterwards.
+     */
+    String putPatch(File file, int buildNumber, String name, String hash) throws IOException {
+        moveIn(file, hash);
+        return update(() -> {
+            index.setProperty(patchKey(buildNumber, name), hash);
+            touch(hash);
+            return hash;
+        });
+    }
+
+    /**
+     * Moves a finished jar into the store and records it as the build {@code target} switches to on its next
+     * launch. {@code file} no longer exists afterwards.
+     * <p>
+     * The jar is recorded like any other build, so once it has been applied, superseded by a newer staged build or
+     * turned down it is evicted like any other.
+     */
+    String stage(File file, int buildNumber, String hash, File target) throws IOException {
+        moveIn(file, hash);
+        return update(() -> {
+            index.setProperty("build." + buildNumber, hash);
+            index.setProperty(installKey("staged", target), hash);
+            touch(hash);
+            return hash;
+        });
+    }
+
+    /**
+     * Switches {@code target} to the build staged for it, if one is newer than {@code currentBuild}. The staged
+     * build is consumed either way.
+     *
+     * @return the build switched to, or -1
+     */
+    int applyStaged(int currentBuild, File target) throws IOException {
+        String key = installKey("staged", target);
+        // Checked without the lock first, as this is on every launch and there is usually nothing staged
+        if (index.getProperty(key) == null) {
+            return -1;
+        }
+        return update(() -> {
+            String hash = (String) index.remove(key);
+            int buildNumber = hash != null ? getBuildNumber(hash) : -1;
+            if (buildNumber <= currentBuild || !object(hash).exists()) {
+                return -1;
+            }
+            activateLocked(hash, target);
+            return buildNumber;
+        });
+    }
+
+    /**
+     * Atomically points {@code target} at a stored jar, remembering what it pointed at before.
+     */
+    void activate(String hash, File target) throws IOException {
+        update(() -> {
+            activateLocked(hash, target);
+            return null;
+        });
+    }
+
+    private void activateLocked(String hash, File target) throws IOException {
+        File temp = new File(target.getAbsolutePath() + ".link");
+        temp.delete();
+        link(object(hash), temp);
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        String active = index.getProperty(installKey("active", target));
+        if (active != null && !active.equals(hash)) {
+            index.setProperty(installKey("previous", target), active);
+        }
+        index.setProperty(installKey("active", target), hash);
+        touch(hash);
+    }
+
+    /**
+     * Deletes the least recently used objects until the store is within its limits. Jars which are active in any
+     * install or currently linked from {@code keep}, staged for an install or which an install would roll back to,
+     * and the patches that produced them, are never deleted. Patches kept without the jar they produce, as a mirror does, only count
+     * towards the size limit.
+     */
+    void evict(File... keep) throws IOException {
+        update(() -> {
+            evictLocked(keep);
+            return null;
+        });
+    }
+
+    private void evictLocked(File... keep) throws IOException {
+        Set<String> recorded = new HashSet<>();
+        for (String key : index.stringPropertyNames()) {
+            if (key.equals("active") || key.startsWith("active.") || key.equals("previous") || key.startsWith("previous.")
+                    || key.equals("staged") || key.startsWith("staged.")) {
+                recorded.add(index.getProperty(key));
+            }
+        }
+        Set<String> pinned = new HashSet<>();
+        List<String> jars = new ArrayList<>();
+        for (String key : index.stringPropertyNames()) {
+            if (key.startsWith("build.")) {
+                String hash = index.getProperty(key);
+                jars.add(hash);
+                boolean used = recorded.contains(hash);
+                for (File file : keep) {
+                    if (file.exists() && object(hash).exists() && Files.isSameFile(file.toPath(), object(hash).toPath())) {
+                        used = true;
+                    }
+                }
+                if (used) {
+                    pinned.add(hash);
+                    pinned.addAll(patchesOf(key.substring("build.".length())));
+                }
+            }
+        }
+        jars.sort(Comparator.comparingLong(this::lastUsed).reversed());
+
+        long total = 0;
+        int kept = 0;
+        for (String hash : jars) {
+            File object = object(hash);
+            if (!object.exists()) {
+                forget(hash);
+                continue;
+            }
+            List<String> patches = patchesOf(String.valueOf(getBuildNumber(hash)));
+            long size = object.length();
+            for (String patch : patches) {
+                size += object(patch).length();
+            }
+            if (pinned.contains(hash) || (kept < MAX_BUILDS && total + size <= MAX_BYTES)) {
+                total += size;
+                kept++;
+            } else {
+                object.delete();
+                forget(hash);
+                for (String patch : patches) {
+                    if (!pinned.contains(patch)) {
+                        object(patch).delete();
+                        forget(patch);
+                    }
+                }
+            }
+        }
+
+        List<String> patches = new ArrayList<>();
+        for (String key : index.stringPropertyNames()) {
+            int dot = key.indexOf('.');
+            if ((key.startsWith("patch.") || key.startsWith("entries.")) && index.getProperty("build." + key.substring(dot + 1)) == null) {
+                patches.add(index.getProperty(key));
+            }
+        }
+        patches.sort(Comparator.comparingLong(this::lastUsed).reversed());
+        for (String hash : patches) {
+            File object = object(hash);
+            if (object.exists() && total + object.length() <= MAX_BYTES) {
+                total += object.length();
+            } else {
+                object.delete();
+                forget(hash);
+            }
+        }
+    }
+
+    private List<String> patchesOf(String buildNumber) {
+        List<String> patches = new ArrayList<>();
+        for (String prefix : new String[]{"patch.", "entries."}) {
+            String patch = index.getProperty(prefix + buildNumber);
+            if (patch != null) {
+                patches.add(patch);
+            }
+        }
+        return patches;
+    }
+
+    /**
+     * The install at the top of the data directory uses the keys it had before there could be several installs.
+     */
+    private String installKey(String key, File target) {
+        File install = target.getAbsoluteFile().getParentFile();
+        return install.equals(directory.getAbsoluteFile().getParentFile()) ? key : key + "." + install.getName();
+    }
+
+    private static String patchKey(int buildNumber, String name) {
+        return (name.equals(EntryPatch.NAME) ? "entries." : "patch.") + buildNumber;
+    }
+
+    private long lastUsed(String hash) {
+        try {
+            return Long.parseLong(index.getProperty("used." + hash, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void touch(String hash) {
+        index.setProperty("used." + hash, String.valueOf(System.currentTimeMillis()));
+    }
+
+    private void forget(String hash) {
+        for (String key : index.stringPropertyNames()) {
+            if (index.getProperty(key).equals(hash) || key.equals("used." + hash)) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private void moveIn(File file, String hash) throws IOException {
+        File object = object(hash);
+        if (object.exists()) {
+            file.delete();
+        } else {
+            Files.move(file.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Applies a change to the index as it is on disk, and writes it back, while holding the index lock.
+     */
+    private <T> T update(IndexUpdate<T> update) throws IOException {
+        // The lock is held per JVM, so other stores in this process on the same directory have to wait their turn here
+        synchronized (ArtifactStore.class) {
+            try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // Released when the channel is closed
+                channel.lock();
+                reload();
+                T result = update.apply();
+                write(index, indexFile, "Helios artifact store");
+                return result;
+            }
+        }
+    }
+
+    private void reload() throws IOException {
+        Properties loaded = new Properties();
+        if (indexFile.exists()) {
+            try (InputStream in = new FileInputStream(indexFile)) {
+                loaded.load(in);
+            }
+        }
+        index = loaded;
+    }
+
+    private static void write(Properties properties, File file, String comment) throws IOException {
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, comment);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Hard links {@code link} to {@code existing}, or copies it on file systems without hard links.
+     */
+    private static void link(File existing, File link) throws IOException {
+        try {
+            Files.createLink(link.toPath(), existing.toPath());
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(existing.toPath(), link.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private interface IndexUpdate<T> {
+        T apply() throws IOException;
+    }
+
+    static String hash(File file) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -16,11 +16,6 @@
 
 package com.heliosdecompiler.bootstrapper;
 
-import com.eclipsesource.json.Json;
-import com.eclipsesource.json.JsonArray;
-import com.eclipsesource.json.JsonObject;
-import com.eclipsesource.json.JsonValue;
-import net.dongliu.vcdiff.VcdiffDecoder;
 import net.dongliu.vcdiff.exception.VcdiffDecodeException;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -29,88 +24,122 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 
-import javax.swing.BorderFactory;
-import javax.swing.JFrame;
-import javax.swing.JLabel;
-import javax.swing.JOptionPane;
-import javax.swing.JPanel;
-import javax.swing.JProgressBar;
-import javax.swing.JTextArea;
-import javax.swing.SwingUtilities;
-import javax.swing.WindowConstants;
-import java.awt.GridLayout;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.net.HttpURLConnection;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.URLClassLoader;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.security.CodeSource;
 import java.security.ProtectionDomain;
 import java.text.DecimalFormat;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
 
 public class Bootstrapper {
-    private static final String IMPLEMENTATION_VERSION = "0.0.7";
+    static final String IMPLEMENTATION_VERSION = "0.0.7";
+    static final String JAR_NAME = "helios-" + IMPLEMENTATION_VERSION + ".jar";
+    private static final Timings.Phase STATIC_INIT = Timings.begin("staticInit");
 
-    private static final File DATA_DIR = new File(System.getProperty("user.home") + File.separator + ".helios");
+    static final File DATA_DIR = new File(System.getProperty("user.home") + File.separator + ".helios");
     private static final long MEGABYTE = 1024L * 1024L;
     private static final DecimalFormat DECIMAL_FORMAT = new DecimalFormat("#.00");
 
-    private static final String LATEST_JAR = String.format("https://ci.samczsun.com/job/Helios/lastSuccessfulBuild/artifact/target/helios-%s.jar", IMPLEMENTATION_VERSION);
+    static final String CI_URL = System.getProperty("com.heliosdecompiler.ciUrl", "https://ci.samczsun.com/job/Helios");
+    static final Mirrors MIRRORS = Mirrors.configure(CI_URL);
+    static final MetadataClient METADATA = new MetadataClient(MIRRORS, new File(DATA_DIR, "cache"));
     static File BOOTSTRAPPER_FILE;
-    private static final File IMPL_FILE;
+    private static Channel channel = Channel.STABLE;
+    private static File implFile;
+    private static final LaunchIndex LAUNCH_INDEX;
+    private static ArtifactStore store;
 
     static {
         if (!DATA_DIR.exists() && !DATA_DIR.mkdirs()) {
-            JOptionPane.showMessageDialog(null, "Error: Could not create data directory (" + DATA_DIR.getAbsolutePath() + ")");
+            Reporter.get().error(null, "Error: Could not create data directory (" + DATA_DIR.getAbsolutePath() + ")");
             System.exit(1);
             throw new RuntimeException();
         }
 
-        IMPL_FILE = new File(DATA_DIR, "helios-" + IMPLEMENTATION_VERSION + ".jar");
+        implFile = channel.getInstall(DATA_DIR);
 
-        BOOTSTRAPPER_FILE = locateBootstrapperFile();
+        Timings.Phase locating = Timings.begin("locateBootstrapperFile");
+        try {
+            BOOTSTRAPPER_FILE = locateBootstrapperFile();
+        } finally {
+            locating.close();
+        }
         System.getProperties().put("com.heliosdecompiler.bootstrapperFile", BOOTSTRAPPER_FILE);
 
-        try (InputStream inputStream = Bootstrapper.class.getResourceAsStream("/META-INF/MANIFEST.MF")) {
-            Manifest manifest = new Manifest(inputStream);
-            String buildVersion = manifest.getMainAttributes().getValue("Implementation-Version");
-            if (buildVersion != null && !buildVersion.equals(IMPLEMENTATION_VERSION)) {
-                throw new RuntimeException(String.format("Implementation Versions do not match (Expected: %s, got %s)", buildVersion, IMPLEMENTATION_VERSION));
+        LAUNCH_INDEX = LaunchIndex.load(new File(DATA_DIR, "launch.idx"));
+        if (!LAUNCH_INDEX.isBootstrapperVerified(BOOTSTRAPPER_FILE)) {
+            Timings.Phase checking = Timings.begin("manifestCheck");
+            try (InputStream inputStream = Bootstrapper.class.getResourceAsStream("/META-INF/MANIFEST.MF")) {
+                Manifest manifest = new Manifest(inputStream);
+                String buildVersion = manifest.getMainAttributes().getValue("Implementation-Version");
+                if (buildVersion != null && !buildVersion.equals(IMPLEMENTATION_VERSION)) {
+                    throw new RuntimeException(String.format("Implementation Versions do not match (Expected: %s, got %s)", buildVersion, IMPLEMENTATION_VERSION));
+                }
+                LAUNCH_INDEX.setBootstrapperVerified(BOOTSTRAPPER_FILE);
+            } catch (IOException ignored) {
+            } finally {
+                checking.close();
             }
-        } catch (IOException ignored) {
         }
+        STATIC_INIT.close();
+    }
+
+    /**
+     * Switches this launch over to the install of another channel.
+     */
+    private static void select(Channel selected) throws IOException {
+        File install = selected.getInstall(DATA_DIR);
+        File directory = install.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory.getAbsolutePath());
+        }
+        channel = selected;
+        implFile = install;
+    }
+
+    /**
+     * @return the command which starts this bootstrapper again on the same channel
+     */
+    static String[] relaunchCommand(String... options) {
+        String[] command = new String[5 + options.length];
+        command[0] = "java";
+        command[1] = "-jar";
+        command[2] = BOOTSTRAPPER_FILE.getAbsolutePath();
+        command[3] = "--Xchannel";
+        command[4] = channel.getName();
+        System.arraycopy(options, 0, command, 5, options.length);
+        return command;
+    }
+
+    static synchronized ArtifactStore store() throws IOException {
+        if (store == null) {
+            store = new ArtifactStore(DATA_DIR);
+        }
+        return store;
     }
 
     private static File locateBootstrapperFile() {
         ProtectionDomain protectionDomain = Bootstrapper.class.getProtectionDomain();
         if (protectionDomain == null) {
-            JOptionPane.showMessageDialog(null, "Error: Could not locate Bootstrapper. (ProtectionDomain was null)");
+            Reporter.get().error(null, "Error: Could not locate Bootstrapper. (ProtectionDomain was null)");
             throw new RuntimeException();
         }
         CodeSource codeSource = protectionDomain.getCodeSource();
         if (codeSource == null) {
-            JOptionPane.showMessageDialog(null, "Error: Could not locate Bootstrapper. (CodeSource was null)");
+            Reporter.get().error(null, "Error: Could not locate Bootstrapper. (CodeSource was null)");
             throw new RuntimeException();
         }
         URL url = codeSource.getLocation();
         if (url == null) {
-            JOptionPane.showMessageDialog(null, "Error: Could not locate Bootstrapper. (Location was null)");
+            Reporter.get().error(null, "Error: Could not locate Bootstrapper. (Location was null)");
             throw new RuntimeException();
         }
         try {
@@ -118,21 +147,21 @@ public class Bootstrapper {
             File file = new File(uri.getPath());
             if (file.isDirectory()) {
                 if (!Boolean.getBoolean("com.heliosdecompiler.isDebugging")) {
-                    JOptionPane.showMessageDialog(null, "Error: Could not locate Bootstrapper. (File is directory)");
+                    Reporter.get().error(null, "Error: Could not locate Bootstrapper. (File is directory)");
                     throw new RuntimeException(file.getAbsolutePath());
                 } else {
                     System.out.println("Warning: Could not locate bootstrapper but com.heliosdecompiler.isDebugging was set to true");
                 }
             } else if (!file.exists()) {
-                JOptionPane.showMessageDialog(null, "Error: Could not locate Bootstrapper. (File does not exist)");
+                Reporter.get().error(null, "Error: Could not locate Bootstrapper. (File does not exist)");
                 throw new RuntimeException();
             } else if (!file.canRead()) {
-                JOptionPane.showMessageDialog(null, "Error: Could not locate Bootstrapper. (File is not readable)");
+                Reporter.get().error(null, "Error: Could not locate Bootstrapper. (File is not readable)");
                 throw new RuntimeException();
             }
             return file;
         } catch (URISyntaxException e) {
-            JOptionPane.showMessageDialog(null, "Error: Could not locate Bootstrapper. (URISyntaxException)");
+            Reporter.get().error(null, "Error: Could not locate Bootstrapper. (URISyntaxException)");
             throw new RuntimeException();
         }
     }
@@ -145,6 +174,36 @@ public class Bootstrapper {
                         .desc("Force the patching process")
                         .build()
         );
+        options.addOption(
+                Option.builder("Xrb")
+                        .longOpt("Xrollback")
+                        .desc("Switch back to the previously installed build")
+                        .build()
+        );
+        options.addOption(
+                Option.builder("Xc")
+                        .longOpt("Xchannel")
+                        .hasArg()
+                        .argName("channel")
+                        .desc("Run the build of a channel: stable (the default), last-successful or a build number")
+                        .build()
+        );
+        options.addOption(
+                Option.builder("Xm")
+                        .longOpt("Xmirror")
+                        .hasArg()
+                        .argName("[host:]port")
+                        .desc("Serve builds to other bootstrappers instead of starting Helios")
+                        .build()
+        );
+        options.addOption(
+                Option.builder("Xd")
+                        .longOpt("Xdiff")
+                        .numberOfArgs(3)
+                        .argName("old> <new> <patch")
+                        .desc("Write an entries.patch which turns one implementation jar into another")
+                        .build()
+        );
         options.addOption(
                 Option.builder("Xh")
                         .longOpt("Xhelp")
@@ -154,272 +213,409 @@ public class Bootstrapper {
         CommandLineParser parser = new DefaultParser();
         try {
             CommandLine commandLine = parser.parse(options, args, true);
+            select(Channel.parse(commandLine.getOptionValue("Xchannel", System.getProperty("com.heliosdecompiler.channel", Channel.STABLE.getName()))));
             if (commandLine.hasOption("Xhelp")) {
                 HelpFormatter formatter = new HelpFormatter();
                 formatter.printHelp("java -jar bootstrapper.jar", options);
             } else if (commandLine.hasOption("Xforceupdate")) {
                 forceUpdate();
+            } else if (commandLine.hasOption("Xdiff")) {
+                String[] files = commandLine.getOptionValues("Xdiff");
+                EntryPatch.create(new File(files[0]), new File(files[1]), new File(files[2]));
+            } else if (commandLine.hasOption("Xmirror")) {
+                String address = commandLine.getOptionValue("Xmirror");
+                int colon = address.lastIndexOf(':');
+                int port = Integer.parseInt(address.substring(colon + 1));
+                MirrorServer.start(colon == -1 ? new InetSocketAddress(port) : new InetSocketAddress(address.substring(0, colon), port), implFile);
             } else {
-//                boolean shouldStart = true;
-//                ServerSocket socket = null;
-//                try {
-//                    socket = new ServerSocket(21354);
-//                } catch (IOException e) {
-//                    shouldStart = false;
-//                } finally {
-//                    if (socket != null) {
-//                        socket.close();
-//                    }
-//                }
-
-//                if (shouldStart) {
+                if (commandLine.hasOption("Xrollback")) {
+                    rollback();
+                }
                 String[] forward = commandLine.getArgs();
+                boolean forwarded;
+                Timings.Phase forwarding = Timings.begin("forwardToInstance");
+                try {
+                    // Each install runs its own instance, so arguments never end up in a build of another channel
+                    forwarded = InstanceServer.forward(implFile.getParentFile(), forward);
+                } finally {
+                    forwarding.close();
+                }
+                if (forwarded) {
+                    System.out.println("Passed arguments to the running Helios instance");
+                    Timings.report(DATA_DIR, "forwarded");
+                    return;
+                }
+
                 HeliosData heliosData = loadHelios();
-                System.out.println("Running Helios version " + heliosData.buildNumber);
+                int staged;
+                Timings.Phase applying = Timings.begin("applyStaged");
+                try {
+                    staged = store().applyStaged(heliosData.buildNumber, implFile);
+                } finally {
+                    applying.close();
+                }
+                if (staged != -1) {
+                    System.out.println("Switched to staged Helios version " + staged);
+                    heliosData = loadHelios();
+                }
+                System.out.println("Running Helios version " + heliosData.buildNumber + " (" + channel + ")");
+                String[] childArgs = new String[forward.length + 2];
+                childArgs[0] = "--Xchannel";
+                childArgs[1] = channel.getName();
+                System.arraycopy(forward, 0, childArgs, 2, forward.length);
+                ClassDataSharing.relaunch(DATA_DIR, BOOTSTRAPPER_FILE, heliosData.buildNumber, childArgs);
 
                 System.getProperties().put("com.heliosdecompiler.buildNumber", String.valueOf(heliosData.buildNumber));
                 System.getProperties().put("com.heliosdecompiler.version", String.valueOf(heliosData.version));
                 System.getProperties().put("com.heliosdecompiler.args", args);
 
-                new Thread(new UpdaterTask(heliosData.buildNumber)).start();
-
-                ClassLoader classLoader = new URLClassLoader(new URL[]{IMPL_FILE.toURI().toURL()}, null);
-                Class<?> bootloader = Class.forName(heliosData.mainClass, false, classLoader);
-                bootloader.getMethod("main", String[].class).invoke(null, new Object[]{forward});
-//                } else {
-//                    String message = Arrays.asList(forward).stream().collect(Collectors.joining(" "));
-//                    Socket clientSocket = new Socket("127.0.0.1", 21354);
-//                    clientSocket.getOutputStream().write(message.getBytes(StandardCharsets.UTF_8));
-//                    clientSocket.getOutputStream().close();
-//                    clientSocket.close();
-//                }
+                if (!channel.isPinned()) {
+                    new Thread(new UpdaterTask(heliosData, channel, implFile)).start();
+                }
+
+                Class<?> bootloader;
+                try (Timings.Phase phase = Timings.begin("loadMainClass")) {
+                    phase.setBuildNumber(heliosData.buildNumber);
+                    ClassLoader classLoader = ImplClassLoader.create(implFile);
+                    ClassPreloader.start(DATA_DIR, heliosData.buildNumber, classLoader);
+                    bootloader = Class.forName(heliosData.mainClass, false, classLoader);
+                }
+                Method main;
+                Timings.Phase lookup = Timings.begin("getMain");
+                try {
+                    main = bootloader.getMethod("main", String[].class);
+                } finally {
+                    lookup.close();
+                }
+                Timings.Phase starting = Timings.begin("startInstanceServer");
+                try {
+                    InstanceServer.start(implFile.getParentFile(), main);
+                } finally {
+                    starting.close();
+                }
+                boolean awaitingWindow = FirstWindow.arm(DATA_DIR);
+                try (Timings.Phase phase = Timings.begin("invokeMain")) {
+                    phase.setBuildNumber(heliosData.buildNumber);
+                    main.invoke(null, new Object[]{forward});
+                }
+                if (!awaitingWindow) {
+                    Timings.report(DATA_DIR, "launched");
+                }
             }
         } catch (Throwable t) {
+            Timings.report(DATA_DIR, "failed");
+            ClassDataSharing.discardArchive();
             displayError(t);
             System.exit(1);
         }
     }
 
+    private static void rollback() throws IOException {
+        ArtifactStore store = store();
+        String previous = store.getPrevious(implFile);
+        if (previous == null) {
+            Reporter.get().info("There is no previous build to roll back to");
+            return;
+        }
+        store.activate(previous, implFile);
+        System.out.println("Rolled back to Helios version " + store.getBuildNumber(previous));
+    }
+
     private static void forceUpdate() throws IOException, VcdiffDecodeException {
-        File backupFile = new File(DATA_DIR, "helios.jar.bak");
+        String failure;
+        Timings.Phase phase = Timings.begin("update");
+        try {
+            failure = update();
+        } finally {
+            phase.close();
+        }
+        Timings.report(DATA_DIR, failure == null ? "updated" : "aborted");
+        if (failure == null) {
+            int buildNumber = loadHelios().buildNumber;
+            System.out.println("Running Helios version " + buildNumber);
+            Reporter.get().info("Updated Helios to version " + buildNumber + "!");
+            Runtime.getRuntime().exec(relaunchCommand());
+        } else {
+            Reporter.get().error(null, failure);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Brings the implementation up to the latest build of its channel.
+     *
+     * @return null if the update went through, otherwise why it was aborted
+     */
+    static String update() throws IOException, VcdiffDecodeException {
+        // An explicit update should not act on a cached answer, but revalidating it is cheap
+        int latest = channel.getLatestBuild(true);
+        System.out.println("Latest version: " + latest);
+        return update(latest);
+    }
+
+    /**
+     * Brings the implementation up to {@code intVersion}. If patching has to be aborted, the implementation is put
+     * back to the build it started from.
+     *
+     * @return null if the update went through, otherwise why it was aborted
+     */
+    private static String update(int intVersion) throws IOException, VcdiffDecodeException {
+        ArtifactStore store = store();
+        String backup;
         try {
-            Files.copy(IMPL_FILE.toPath(), backupFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            backup = loadHelios().hash;
         } catch (IOException exception) {
             // We're going to wrap it so end users know what went wrong
-            throw new IOException(String.format("Could not back up Helios implementation (%s %s, %s %s)", IMPL_FILE.canRead(), IMPL_FILE.canWrite(), backupFile.canRead(), backupFile.canWrite()), exception);
+            throw new IOException(String.format("Could not back up Helios implementation (%s %s)", implFile.canRead(), implFile.canWrite()), exception);
         }
-        URL latestVersion = new URL("https://ci.samczsun.com/job/Helios/lastStableBuild/buildNumber");
-        HttpURLConnection connection = (HttpURLConnection) latestVersion.openConnection();
-        if (connection.getResponseCode() == 200) {
-            boolean aborted = false;
+        String failure = null;
 
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            copy(connection.getInputStream(), outputStream);
-            String version = new String(outputStream.toByteArray(), "UTF-8");
-            System.out.println("Latest version: " + version);
-            int intVersion = Integer.parseInt(version);
+        UpdatePlanner planner = new UpdatePlanner(new File(DATA_DIR, "update-stats.properties"));
+        UpdatePlanner.Plan plan;
+        try (Timings.Phase phase = Timings.begin("plan")) {
+            phase.setBuildNumber(intVersion);
+            plan = planner.plan(loadHelios().buildNumber, intVersion);
+        }
+        System.out.println("Update plan: " + plan);
+        long updateStart = System.nanoTime();
+        if (plan.fullBuild != -1 && !downloadBuild(planner, plan.fullBuild)) {
+            System.out.println("Could not download build " + plan.fullBuild + ", falling back to patching");
+        }
+        String current = backup;
+        boolean downloadedLatest = false;
 
+        try (PatchPipeline pipeline = new PatchPipeline(implFile.getParentFile(), intVersion, planner)) {
             loop:
             while (true) {
-                int buildNumber = loadHelios().buildNumber;
-                int oldBuildNumber = buildNumber;
+                HeliosData heliosData = loadHelios();
+                int buildNumber = heliosData.buildNumber;
+                current = heliosData.hash;
                 System.out.println("Current Helios version is " + buildNumber);
 
                 if (buildNumber < intVersion) {
-                    while (buildNumber <= intVersion) {
+                    // Never past intVersion, which may be a pinned build with newer ones after it
+                    while (buildNumber < intVersion) {
                         buildNumber++;
-                        URL status = new URL("https://ci.samczsun.com/job/Helios/" + buildNumber + "/api/json");
-                        HttpURLConnection con = (HttpURLConnection) status.openConnection();
-                        if (con.getResponseCode() == 200) {
-                            JsonObject object = Json.parse(new InputStreamReader(con.getInputStream())).asObject();
-                            if (object.get("result").asString().equals("SUCCESS")) {
-                                JsonArray artifacts = object.get("artifacts").asArray();
-                                for (JsonValue value : artifacts.values()) {
-                                    JsonObject artifact = value.asObject();
-                                    String name = artifact.get("fileName").asString();
-                                    if (name.contains("helios-") && !name.contains(IMPLEMENTATION_VERSION)) {
-                                        JOptionPane.showMessageDialog(null, "Bootstrapper is out of date. Patching cannot continue");
-                                        aborted = true;
+                        PatchPipeline.BuildPatch patch = pipeline.take(buildNumber);
+                        switch (patch.status) {
+                            case OUTDATED:
+                                failure = "Bootstrapper is out of date. Patching cannot continue";
+                                break loop;
+                            case ERROR:
+                                failure = "Could not fetch build " + patch.buildNumber + ": " + patch.message + "\nAborting patch process";
+                                break loop;
+                            case PATCH:
+                                File decoded = store.createTempFile();
+                                try {
+                                    long decodeStart = System.nanoTime();
+                                    String hash;
+                                    try (Timings.Phase phase = Timings.beginPatch("decode", patch.buildNumber)) {
+                                        hash = patch.apply(store.object(current), current, decoded);
+                                        phase.setBytes(decoded.length());
+                                        Transfers.verify("build " + patch.buildNumber, patch.expectedHash, hash);
+                                    } catch (Transfers.ChecksumException e) {
+                                        failure = "Patching produced a corrupt jar. " + e.getMessage() + "\nAborting patch process";
                                         break loop;
                                     }
+                                    planner.recordDecode(decoded.length(), System.nanoTime() - decodeStart);
+                                    current = store.put(decoded, patch.buildNumber, hash);
+                                    store.putPatch(patch.file, patch.buildNumber, patch.name, patch.hash);
+                                } finally {
+                                    decoded.delete();
+                                    patch.delete();
                                 }
-                                URL url = new URL("https://ci.samczsun.com/job/Helios/" + buildNumber + "/artifact/target/delta.patch");
-                                con = (HttpURLConnection) url.openConnection();
-                                if (con.getResponseCode() == 200) {
-                                    File dest = new File(DATA_DIR, "delta.patch");
-                                    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                                    copy(con.getInputStream(), byteArrayOutputStream);
-                                    FileOutputStream fileOutputStream = new FileOutputStream(dest);
-                                    fileOutputStream.write(byteArrayOutputStream.toByteArray());
-                                    fileOutputStream.close();
-                                    File cur = IMPL_FILE;
-                                    File old = new File(IMPL_FILE.getAbsolutePath() + "." + oldBuildNumber);
-                                    if (cur.renameTo(old)) {
-                                        VcdiffDecoder.decode(old, dest, cur);
-                                        old.delete();
-                                        dest.delete();
-                                        continue loop;
-                                    } else {
-                                        throw new IllegalArgumentException("Could not rename");
-                                    }
-                                }
-                            }
-                        } else {
-                            JOptionPane.showMessageDialog(null, "Server returned response code " + con.getResponseCode() + " " + con.getResponseMessage() + "\nAborting patch process", null, JOptionPane.INFORMATION_MESSAGE);
-                            aborted = true;
-                            break loop;
+                                store.activate(current, implFile);
+                                continue loop;
+                            default:
+                                break;
                         }
                     }
+                    // Every build up to intVersion was skipped, so no patch leads there and going round again
+                    // would only skip them all again
+                    if (!downloadedLatest && downloadBuild(planner, intVersion)) {
+                        downloadedLatest = true;
+                        continue;
+                    }
+                    failure = "Build " + intVersion + " has no patch and could not be downloaded\nAborting patch process";
+                    break;
                 } else {
                     break;
                 }
             }
+        }
 
-            if (!aborted) {
-                int buildNumber = loadHelios().buildNumber;
-                System.out.println("Running Helios version " + buildNumber);
-                JOptionPane.showMessageDialog(null, "Updated Helios to version " + buildNumber + "!");
-                Runtime.getRuntime().exec(new String[]{
-                        "java",
-                        "-jar",
-                        BOOTSTRAPPER_FILE.getAbsolutePath()
-                });
-            } else {
-                try {
-                    Files.copy(backupFile.toPath(), IMPL_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException exception) {
-                    // We're going to wrap it so end users know what went wrong
-                    throw new IOException("Critical Error! Could not restore Helios implementation to original copy" +
-                            "Try relaunching the Bootstrapper. If that doesn't work open a GitHub issue with details", exception);
-                }
+        System.out.println(String.format("Update took %dms (estimated %dms)", (System.nanoTime() - updateStart) / 1000000, plan.estimatedMillis));
+        planner.save();
+        store.evict(Channel.getInstalls(DATA_DIR));
+
+        if (failure != null) {
+            try {
+                store.activate(backup, implFile);
+            } catch (IOException exception) {
+                // We're going to wrap it so end users know what went wrong
+                throw new IOException("Critical Error! Could not restore Helios implementation to original copy" +
+                        "Try relaunching the Bootstrapper. If that doesn't work open a GitHub issue with details", exception);
             }
-            System.exit(0);
-        } else {
-            throw new IOException(connection.getResponseCode() + ": " + connection.getResponseMessage());
         }
+        return failure;
+    }
+
+    /**
+     * Replaces the implementation with the full jar of the given build.
+     *
+     * @return false if the jar is not available or is corrupt
+     */
+    private static boolean downloadBuild(UpdatePlanner planner, int buildNumber) throws IOException {
+        SegmentedDownloader downloader = new SegmentedDownloader(planner.artifactUrl(buildNumber), implFile);
+        if (downloader.probe() != 200) {
+            return false;
+        }
+        downloader.setExpectedHash(METADATA.getChecksum(buildNumber, JAR_NAME));
+        long start = System.nanoTime();
+        try (Timings.Phase phase = Timings.beginPatch("download", buildNumber)) {
+            phase.setBytes(downloader.getLength());
+            downloader.download(null);
+        } catch (Transfers.ChecksumException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        planner.recordDownload(downloader.getLength(), System.nanoTime() - start);
+        return true;
     }
 
     private static HeliosData loadHelios() throws IOException {
+        try (Timings.Phase phase = Timings.begin("loadHelios")) {
+            HeliosData data = findHelios();
+            phase.setBuildNumber(data.buildNumber);
+            return data;
+        }
+    }
+
+    private static HeliosData findHelios() throws IOException {
         System.out.println("Finding Helios implementation");
 
-        HeliosData data = new HeliosData();
+        HeliosData data = LAUNCH_INDEX.getImplementation(implFile);
+        if (data != null) {
+            return data;
+        }
 
-        boolean needsToDownload = !IMPL_FILE.exists();
+        boolean needsToDownload = !implFile.exists();
         if (!needsToDownload) {
-            try (JarFile jarFile = new JarFile(IMPL_FILE)) {
-                ZipEntry entry = jarFile.getEntry("META-INF/MANIFEST.MF");
-                if (entry == null) {
-                    needsToDownload = true;
-                } else {
-                    Manifest manifest = new Manifest(jarFile.getInputStream(entry));
-                    String ver = manifest.getMainAttributes().getValue("Implementation-Version");
-                    try {
-                        data.buildNumber = Integer.parseInt(ver);
-                        data.version = manifest.getMainAttributes().getValue("Version");
-                        data.mainClass = manifest.getMainAttributes().getValue("Main-Class");
-                    } catch (NumberFormatException e) {
-                        needsToDownload = true;
-                    }
-                }
-            } catch (IOException e) {
-                needsToDownload = true;
+            data = readManifest(implFile);
+            needsToDownload = data == null;
+            if (!needsToDownload) {
+                data.hash = store().adopt(implFile, data.buildNumber);
+                LAUNCH_INDEX.setImplementation(implFile, data);
             }
         }
         if (needsToDownload) {
-            URL latestJar = new URL(LATEST_JAR);
+            int latest = -1;
+            try {
+                // Pin the build, so the jar and its checksum can't come from two different builds
+                latest = channel.getLatestBuild(true);
+            } catch (IOException e) {
+                System.out.println("Could not look up the latest " + channel + " build: " + e.getMessage());
+            }
+            if (latest != -1 && installFromStore(latest)) {
+                return findHelios();
+            }
             System.out.println("Downloading latest Helios implementation");
-
-            FileOutputStream out = new FileOutputStream(IMPL_FILE);
-            HttpURLConnection connection = (HttpURLConnection) latestJar.openConnection();
-            if (connection.getResponseCode() == 200) {
-                int contentLength = connection.getContentLength();
+            SegmentedDownloader downloader = null;
+            if (latest != -1) {
+                try {
+                    String checksum = METADATA.getChecksum(latest, JAR_NAME);
+                    downloader = new SegmentedDownloader(MIRRORS.locate(latest + "/artifact/target/" + JAR_NAME, checksum), implFile);
+                    downloader.setExpectedHash(checksum);
+                } catch (IOException e) {
+                    downloader = null;
+                }
+            }
+            if (downloader == null) {
+                // Without a build number there is no checksum, so this comes from the CI server itself
+                downloader = new SegmentedDownloader(MIRRORS.locate(channel.getLatestJarPath(), null), implFile);
+            }
+            int responseCode = downloader.probe();
+            if (responseCode == 200) {
+                long contentLength = downloader.getLength();
                 if (contentLength > 0) {
-                    InputStream stream = connection.getInputStream();
-                    byte[] buffer = new byte[1024];
-                    int amnt;
-                    AtomicInteger total = new AtomicInteger();
-                    AtomicBoolean stop = new AtomicBoolean(false);
-
-                    Thread progressBar = new Thread() {
-                        public void run() {
-                            JPanel panel = new JPanel();
-                            panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
-
-                            JLabel label = new JLabel();
-                            label.setText("Downloading latest Helios build");
-                            panel.add(label);
-
-                            GridLayout layout = new GridLayout();
-                            layout.setColumns(1);
-                            layout.setRows(3);
-                            panel.setLayout(layout);
-                            JProgressBar pbar = new JProgressBar();
-                            pbar.setMinimum(0);
-                            pbar.setMaximum(100);
-                            panel.add(pbar);
-
-                            JTextArea textArea = new JTextArea(1, 3);
-                            textArea.setOpaque(false);
-                            textArea.setEditable(false);
-                            textArea.setText("Downloaded 00.00MB/00.00MB");
-                            panel.add(textArea);
-
-                            JFrame frame = new JFrame();
-                            frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
-                            frame.setContentPane(panel);
-                            frame.pack();
-                            frame.setLocationRelativeTo(null);
-                            frame.setVisible(true);
-
-                            while (!stop.get()) {
-                                SwingUtilities.invokeLater(() -> pbar.setValue((int) (100.0 * total.get() / contentLength)));
-
-                                textArea.setText("Downloaded " + bytesToMeg(total.get()) + "MB/" + bytesToMeg(contentLength) + "MB");
-                                try {
-                                    Thread.sleep(100);
-                                } catch (InterruptedException ignored) {
-                                }
-                            }
-                            frame.dispose();
-                        }
-                    };
-                    progressBar.start();
-
-                    while ((amnt = stream.read(buffer)) != -1) {
-                        out.write(buffer, 0, amnt);
-                        total.addAndGet(amnt);
+                    try (Timings.Phase phase = Timings.beginPatch("download", latest);
+                         Reporter.Progress progress = Reporter.get().progress("Downloading latest Helios build", contentLength)) {
+                        phase.setBytes(contentLength);
+                        downloader.download(progress::advance);
                     }
-                    stop.set(true);
-                    return loadHelios();
+                    return findHelios();
                 } else {
-                    throw new IOException("Content-Length set to " + connection.getContentLength());
+                    throw new IOException("Content-Length set to " + contentLength);
                 }
-            } else if (connection.getResponseCode() == 404) { // Most likely bootstrapper is out of date
+            } else if (responseCode == 404) { // Most likely bootstrapper is out of date
                 throw new RuntimeException("Bootstrapper out of date!");
             } else {
-                throw new IOException(connection.getResponseCode() + ": " + connection.getResponseMessage());
+                throw new IOException(responseCode + ": " + downloader.getResponseMessage());
             }
         }
 
         return data;
     }
 
-    static void displayError(Throwable t) {
-        t.printStackTrace();
-        StringWriter writer = new StringWriter();
-        t.printStackTrace(new PrintWriter(writer));
-        JOptionPane.showMessageDialog(null, writer.toString(), t.getClass().getSimpleName(),
-                JOptionPane.INFORMATION_MESSAGE);
+    /**
+     * Sets up a new install from builds other installs have already brought into the store: the build itself if it
+     * is there, otherwise the newest stored build before it, brought forward the cheapest way the planner finds.
+     *
+     * @return false if there is nothing to start from or bringing it forward failed, so the build has to be
+     * downloaded in full
+     */
+    private static boolean installFromStore(int buildNumber) throws IOException {
+        ArtifactStore store = store();
+        String hash = store.getBuild(buildNumber);
+        if (hash != null) {
+            System.out.println("Using stored Helios version " + buildNumber);
+            store.activate(hash, implFile);
+            return true;
+        }
+        int ancestor = store.getNearestBuild(buildNumber);
+        if (ancestor == -1) {
+            return false;
+        }
+        System.out.println("Updating stored Helios version " + ancestor + " to " + buildNumber);
+        store.activate(store.getBuild(ancestor), implFile);
+        String failure;
+        try {
+            failure = update(buildNumber);
+        } catch (IOException | VcdiffDecodeException e) {
+            failure = e.getMessage();
+        }
+        if (failure != null) {
+            System.out.println("Could not update stored Helios version " + ancestor + ": " + failure);
+            implFile.delete();
+            return false;
+        }
+        return true;
     }
 
-    static void copy(InputStream input, OutputStream output) throws IOException {
-        byte[] buffer = new byte[4096];
-        int n;
-        while ((n = input.read(buffer)) != -1) {
-            output.write(buffer, 0, n);
+    /**
+     * @return the build described by the jar's manifest, or null if the jar is unreadable or not a Helios build
+     */
+    static HeliosData readManifest(File jar) {
+        try (JarFile jarFile = new JarFile(jar)) {
+            ZipEntry entry = jarFile.getEntry("META-INF/MANIFEST.MF");
+            if (entry == null) {
+                return null;
+            }
+            Manifest manifest = new Manifest(jarFile.getInputStream(entry));
+            HeliosData data = new HeliosData();
+            data.buildNumber = Integer.parseInt(manifest.getMainAttributes().getValue("Implementation-Version"));
+            data.version = manifest.getMainAttributes().getValue("Version");
+            data.mainClass = manifest.getMainAttributes().getValue("Main-Class");
+            return data;
+        } catch (IOException | NumberFormatException e) {
+            return null;
         }
     }
 
+    static void displayError(Throwable t) {
+        Reporter.get().exception(t);
+    }
+
     static String bytesToMeg(double bytes) {
         return DECIMAL_FORMAT.format(bytes / MEGABYTE);
     }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Which Helios builds an install follows: the latest stable build, the latest successful build, or a single pinned
+ * build.
+ * <p>
+ * Every channel has its own install, so several builds can be kept side by side and picked per launch with
+ * {@code --Xchannel} or {@code com.heliosdecompiler.channel}. Installs are links into the same {@link ArtifactStore},
+ * so a build is only downloaded or patched by whichever channel needs it first. The stable channel keeps the
+ * implementation file at the top of the data directory, where installs from before channels existed already have it.
+ */
+final class Channel {
+    static final Channel STABLE = new Channel("stable", "lastStableBuild", -1);
+    static final Channel LAST_SUCCESSFUL = new Channel("last-successful", "lastSuccessfulBuild", -1);
+
+    private static final String PINNED_PREFIX = "build-";
+
+    private final String name;
+    private final String permalink;
+    private final int pinned;
+
+    private Channel(String name, String permalink, int pinned) {
+        this.name = name;
+        this.permalink = permalink;
+        this.pinned = pinned;
+    }
+
+    /**
+     * @param name {@code stable}, {@code last-successful}, or a build number with or without a {@code build-} prefix
+     */
+    static Channel parse(String name) {
+        if (name.equals(STABLE.name)) {
+            return STABLE;
+        }
+        if (name.equals(LAST_SUCCESSFUL.name)) {
+            return LAST_SUCCESSFUL;
+        }
+        String number = name.startsWith(PINNED_PREFIX) ? name.substring(PINNED_PREFIX.length()) : name;
+        try {
+            int buildNumber = Integer.parseInt(number);
+            if (buildNumber > 0) {
+                return new Channel(PINNED_PREFIX + buildNumber, String.valueOf(buildNumber), buildNumber);
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("Unknown channel " + name + " (expected stable, last-successful or a build number)");
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean isPinned() {
+        return pinned != -1;
+    }
+
+    /**
+     * @param revalidate whether to check with the server even if the cached build number hasn't expired
+     * @return the build this channel is currently at
+     */
+    int getLatestBuild(boolean revalidate) throws IOException {
+        return isPinned() ? pinned : Bootstrapper.METADATA.getLatestBuild(permalink, revalidate);
+    }
+
+    /**
+     * @return where to download this channel's jar from when the build number can't be looked up
+     */
+    String getLatestJarPath() {
+        return String.format("%s/artifact/target/helios-%s.jar", permalink, Bootstrapper.IMPLEMENTATION_VERSION);
+    }
+
+    /**
+     * @return the implementation file of this channel's install
+     */
+    File getInstall(File dataDirectory) {
+        if (this == STABLE) {
+            return new File(dataDirectory, "helios-" + Bootstrapper.IMPLEMENTATION_VERSION + ".jar");
+        }
+        return new File(new File(new File(dataDirectory, "installs"), name), "helios.jar");
+    }
+
+    /**
+     * @return the implementation files of every install, so none of the builds they use are evicted
+     */
+    static File[] getInstalls(File dataDirectory) {
+        List<File> installs = new ArrayList<>();
+        installs.add(STABLE.getInstall(dataDirectory));
+        File[] channels = new File(dataDirectory, "installs").listFiles(File::isDirectory);
+        if (channels != null) {
+            for (File channel : channels) {
+                installs.add(new File(channel, "helios.jar"));
+            }
+        }
+        return installs.toArray(new File[0]);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Starts Helios in a child JVM which maps a dynamic Class Data Sharing archive of the current build.
+ * <p>
+ * A JVM decides whether to map an archive when it starts, so the only way to use one is to relaunch. The first
+ * launch of a build records an archive when the child exits, which the parent waits for so it can move the finished
+ * archive into place. Later launches map it, and the parent exits as soon as the child has started. A JVM which was
+ * already started with the current archive isn't relaunched at all. Archives are keyed by build number, JVM version
+ * and bootstrapper jar, since the JVM ignores an archive whose class path has changed, and those of the few builds
+ * launched last are kept. Setting {@code com.heliosdecompiler.cds} to false, or running on a JVM without dynamic archives (HotSpot 13 and
+ * later), starts Helios in-process as before.
+ */
+final class ClassDataSharing {
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("com.heliosdecompiler.cds", "true"));
+    private static final String CHILD_PROPERTY = "com.heliosdecompiler.cds.child";
+    private static final String ARCHIVE_PROPERTY = "com.heliosdecompiler.cds.archive";
+    // Enough for a few installs used side by side to each keep theirs
+    private static final int MAX_ARCHIVES = 4;
+
+    private ClassDataSharing() {
+    }
+
+    /**
+     * @return whether this JVM is the child started by {@link #relaunch}
+     */
+    static boolean isChild() {
+        return Boolean.getBoolean(CHILD_PROPERTY);
+    }
+
+    /**
+     * Runs Helios in a child JVM and exits. Returns only if Helios should be started in this JVM instead.
+     */
+    static void relaunch(File dataDirectory, File bootstrapper, int buildNumber, String[] args) {
+        if (!ENABLED || isChild() || !bootstrapper.isFile() || !isSupported()) {
+            return;
+        }
+        List<String> inputArguments = ManagementFactory.getRuntimeMXBean().getInputArguments();
+        for (String argument : inputArguments) {
+            // A child would fight the parent for the debugger port
+            if (argument.startsWith("-agentlib:jdwp") || argument.startsWith("-Xrunjdwp")) {
+                return;
+            }
+        }
+
+        File directory = new File(dataDirectory, "cds");
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+        File archive = new File(directory, archiveName(bootstrapper, buildNumber));
+        if (archive.isFile() && inputArguments.contains("-XX:SharedArchiveFile=" + archive.getAbsolutePath())) {
+            // Started with the current archive already, so a child would only map the same one again
+            return;
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(javaExecutable());
+        for (String argument : inputArguments) {
+            if (!argument.startsWith("-XX:SharedArchiveFile") && !argument.startsWith("-XX:ArchiveClassesAtExit") && !argument.startsWith("-Xshare")) {
+                command.add(argument);
+            }
+        }
+        command.add("-D" + CHILD_PROPERTY + "=true");
+        // Classes which can't be archived are each reported as a warning, which is just noise for users
+        command.add("-Xlog:cds*=off");
+        File dump = null;
+        if (archive.isFile()) {
+            command.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+            command.add("-D" + ARCHIVE_PROPERTY + "=" + archive.getAbsolutePath());
+            archive.setLastModified(System.currentTimeMillis());
+        } else {
+            try {
+                dump = File.createTempFile("dump", ".jsa.tmp", directory);
+                dump.delete();
+            } catch (IOException e) {
+                return;
+            }
+            command.add("-XX:ArchiveClassesAtExit=" + dump.getAbsolutePath());
+        }
+        command.add("-jar");
+        command.add(bootstrapper.getAbsolutePath());
+        command.addAll(Arrays.asList(args));
+
+        Process process;
+        try {
+            process = new ProcessBuilder(command).inheritIO().start();
+        } catch (IOException e) {
+            System.out.println("Could not start Helios with a class data archive: " + e.getMessage());
+            if (dump != null) {
+                dump.delete();
+            }
+            return;
+        }
+        if (dump == null) {
+            // Nothing is left to do once the child is up, and a failed launch discards the archive by itself
+            Timings.report(dataDirectory, "relaunched");
+            System.exit(0);
+        }
+
+        int exitCode;
+        Timings.Phase phase = Timings.begin("childJvm");
+        try {
+            phase.setBuildNumber(buildNumber);
+            exitCode = process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroy();
+            exitCode = 1;
+        } finally {
+            phase.close();
+        }
+        // The JVM writes the archive in place, so only a dump from a clean exit is complete
+        if (exitCode == 0 && dump.length() > 0) {
+            publish(directory, dump, archive);
+        }
+        dump.delete();
+        Timings.report(dataDirectory, "relaunched");
+        System.exit(exitCode);
+    }
+
+    /**
+     * Called when this JVM fails to launch Helios. If it was mapping an archive, that may be what broke the launch,
+     * so a fresh one is recorded next time.
+     */
+    static void discardArchive() {
+        String archive = System.getProperty(ARCHIVE_PROPERTY);
+        if (isChild() && archive != null) {
+            new File(archive).delete();
+        }
+    }
+
+    /**
+     * A parent started without a console, such as from a shortcut on Windows, would otherwise open one for the child.
+     */
+    private static String javaExecutable() {
+        File bin = new File(System.getProperty("java.home"), "bin");
+        if (System.console() == null && System.getProperty("os.name", "").startsWith("Windows")) {
+            File javaw = new File(bin, "javaw.exe");
+            if (javaw.isFile()) {
+                return javaw.getAbsolutePath();
+            }
+        }
+        return new File(bin, "java").getAbsolutePath();
+    }
+
+    private static void publish(File directory, File dump, File archive) {
+        try {
+            Files.move(dump.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            return;
+        }
+        File[] archives = directory.listFiles((dir, name) -> name.endsWith(".jsa"));
+        if (archives != null && archives.length > MAX_ARCHIVES) {
+            Arrays.sort(archives, Comparator.comparingLong(File::lastModified).reversed());
+            for (int i = MAX_ARCHIVES; i < archives.length; i++) {
+                archives[i].delete();
+            }
+        }
+    }
+
+    private static String archiveName(File bootstrapper, int buildNumber) {
+        String jvm = System.getProperty("java.vm.version", "unknown").replaceAll("[^A-Za-z0-9._-]", "_");
+        String stamp = Long.toHexString(bootstrapper.length() * 31 + bootstrapper.lastModified());
+        return "helios-" + buildNumber + "-" + jvm + "-" + stamp + ".jsa";
+    }
+
+    /**
+     * Dynamic archives (-XX:ArchiveClassesAtExit) are a HotSpot feature since Java 13.
+     */
+    private static boolean isSupported() {
+        String vm = System.getProperty("java.vm.name", "");
+        if (!vm.contains("HotSpot") && !vm.contains("OpenJDK")) {
+            return false;
+        }
+        String version = System.getProperty("java.specification.version", "1.8");
+        if (version.startsWith("1.")) {
+            return false;
+        }
+        try {
+            return Integer.parseInt(version) >= 13;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the classes Helios needs to start up on background threads, before Helios gets to them.
+ * <p>
+ * The first launch of a build records which classes the implementation loader defines during the first
+ * {@code com.heliosdecompiler.preload.recordMillis} milliseconds, in order. Later launches of that build replay the
+ * recording on {@code com.heliosdecompiler.preloadThreads} threads while Helios's main runs, so the startup thread
+ * mostly finds its classes already defined. Classes are only loaded, never initialized, since a static initializer
+ * may depend on something Helios has not set up yet. An update brings in a build without a recording, so the first
+ * launch after it records a fresh one. Only the recordings of the few builds launched last are kept. Setting
+ * {@code com.heliosdecompiler.preload} to false turns all of this off.
+ */
+final class ClassPreloader {
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("com.heliosdecompiler.preload", "true"));
+    private static final int THREADS = Integer.getInteger("com.heliosdecompiler.preloadThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long RECORD_MILLIS = Long.getLong("com.heliosdecompiler.preload.recordMillis", 10000);
+    private static final int MAX_CLASSES = 65536;
+    // Enough for a few installs used side by side to each keep theirs
+    private static final int MAX_PROFILES = 4;
+
+    private static final int MAGIC = 0x48504C44;
+    private static final int VERSION = 1;
+
+    private ClassPreloader() {
+    }
+
+    /**
+     * Replays the recording for {@code buildNumber} through {@code loader}, or starts recording one if there is none.
+     */
+    static void start(File dataDirectory, int buildNumber, ClassLoader loader) {
+        if (!ENABLED || !(loader instanceof ImplClassLoader)) {
+            return;
+        }
+        File directory = new File(dataDirectory, "preload");
+        File profile = new File(directory, "helios-" + buildNumber + ".classes");
+        List<String> classes = load(profile);
+        if (classes != null) {
+            profile.setLastModified(System.currentTimeMillis());
+            replay(classes, loader);
+        } else {
+            record(directory, profile, (ImplClassLoader) loader);
+        }
+    }
+
+    /**
+     * Loads {@code classes} through {@code loader} on background threads, roughly in order. Returns immediately.
+     */
+    static void replay(List<String> classes, ClassLoader loader) {
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            Timings.Phase phase = Timings.begin("preload");
+            try {
+                int index;
+                while ((index = next.getAndIncrement()) < classes.size()) {
+                    try {
+                        Class.forName(classes.get(index), false, loader);
+                    } catch (ClassNotFoundException | LinkageError ignored) {
+                        // Helios will run into the same problem, and report it, if it ever needs the class
+                    }
+                }
+            } finally {
+                phase.close();
+            }
+        };
+        for (int i = 0; i < Math.max(1, THREADS); i++) {
+            Thread thread = new Thread(worker, "Helios Preloader");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static void record(File directory, File profile, ImplClassLoader loader) {
+        loader.startRecording();
+        Runnable save = () -> {
+            List<String> classes;
+            synchronized (ClassPreloader.class) {
+                classes = loader.stopRecording();
+            }
+            if (classes != null) {
+                save(directory, profile, classes);
+            }
+        };
+        Thread recorder = new Thread(() -> {
+            try {
+                Thread.sleep(RECORD_MILLIS);
+            } catch (InterruptedException ignored) {
+            }
+            save.run();
+        }, "Helios Preload Recorder");
+        recorder.setDaemon(true);
+        recorder.start();
+        // Helios may well be closed before the recording would end by itself
+        Runtime.getRuntime().addShutdownHook(new Thread(save, "Helios Preload Recorder"));
+    }
+
+    private static List<String> load(File profile) {
+        if (!profile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(profile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count < 0 || count > MAX_CLASSES) {
+                return null;
+            }
+            List<String> classes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                classes.add(in.readUTF());
+            }
+            return classes;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void save(File directory, File profile, List<String> classes) {
+        if (classes.isEmpty() || (!directory.exists() && !directory.mkdirs())) {
+            return;
+        }
+        File temp = new File(profile.getAbsolutePath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                int count = Math.min(classes.size(), MAX_CLASSES);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeUTF(classes.get(i));
+                }
+            }
+            Files.move(temp.toPath(), profile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        // Only the recordings of the builds launched most recently are worth keeping
+        File[] profiles = directory.listFiles((dir, name) -> name.endsWith(".classes"));
+        if (profiles != null && profiles.length > MAX_PROFILES) {
+            Arrays.sort(profiles, Comparator.comparingLong(File::lastModified).reversed());
+            for (int i = MAX_PROFILES; i < profiles.length; i++) {
+                profiles[i].delete();
+            }
+        }
+    }
+}
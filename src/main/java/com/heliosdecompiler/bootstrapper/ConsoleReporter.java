@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import com.eclipsesource.json.JsonObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports to standard output and standard error, either as plain text or, with
+ * {@code com.heliosdecompiler.logFormat=json}, as one JSON object per line for log collectors.
+ */
+class ConsoleReporter implements Reporter {
+    private static final int PROGRESS_STEPS = 10;
+
+    private final boolean json;
+
+    ConsoleReporter(boolean json) {
+        this.json = json;
+    }
+
+    @Override
+    public void info(String message) {
+        if (json) {
+            print(event("info").add("message", message), false);
+        } else {
+            System.out.println(message);
+        }
+    }
+
+    @Override
+    public void error(String title, String message) {
+        if (json) {
+            JsonObject event = event("error").add("message", message);
+            if (title != null) {
+                event.add("title", title);
+            }
+            print(event, true);
+        } else {
+            System.err.println(title != null ? title + ": " + message : message);
+        }
+    }
+
+    @Override
+    public void exception(Throwable throwable) {
+        if (json) {
+            StringWriter writer = new StringWriter();
+            throwable.printStackTrace(new PrintWriter(writer));
+            print(event("error").add("title", throwable.getClass().getSimpleName())
+                    .add("message", String.valueOf(throwable.getMessage()))
+                    .add("stackTrace", writer.toString()), true);
+        } else {
+            throwable.printStackTrace();
+        }
+    }
+
+    @Override
+    public boolean confirm(String question) {
+        if (System.console() == null) {
+            // Nobody is there to answer, which is the normal case on a build agent
+            if (json) {
+                print(event("question").add("message", question).add("answer", false), false);
+            } else {
+                System.out.println(question + " [y/N] n (not interactive)");
+            }
+            return false;
+        }
+        System.out.print(question + " [y/N] ");
+        System.out.flush();
+        try {
+            String line = new BufferedReader(new InputStreamReader(System.in)).readLine();
+            return line != null && (line.trim().equalsIgnoreCase("y") || line.trim().equalsIgnoreCase("yes"));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Progress progress(String title, long total) {
+        info(title);
+        AtomicLong done = new AtomicLong();
+        return new Progress() {
+            private volatile long reported;
+
+            @Override
+            public void advance(long bytes) {
+                long now = done.addAndGet(bytes);
+                long step = total > 0 ? now * PROGRESS_STEPS / total : 0;
+                if (step > reported) {
+                    // Segments finish chunks concurrently, and the lines must still come out in order
+                    synchronized (this) {
+                        if (step > reported) {
+                            reported = step;
+                            report(title, now, total);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private void report(String title, long done, long total) {
+        if (json) {
+            print(event("progress").add("title", title).add("bytes", done).add("total", total), false);
+        } else {
+            System.out.println("Downloaded " + Bootstrapper.bytesToMeg(done) + "MB/" + Bootstrapper.bytesToMeg(total) + "MB");
+        }
+    }
+
+    private static JsonObject event(String type) {
+        return new JsonObject().add("time", System.currentTimeMillis()).add("event", type);
+    }
+
+    private static void print(JsonObject event, boolean error) {
+        String line = event.toString();
+        // One line per event, even when several threads report at once
+        synchronized (ConsoleReporter.class) {
+            (error ? System.err : System.out).println(line);
+        }
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.heliosdecompiler.bootstrapper;
+
+import net.dongliu.vcdiff.VcdiffEncoder;
+import net.dongliu.vcdiff.exception.VcdiffDecodeException;
+import net.dongliu.vcdiff.exception.VcdiffEncodeException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A patch which rebuilds the next build's jar entry by entry, published by the CI server as {@code entries.patch}
+ * next to {@code delta.patch}.
+ * <p>
+ * Entries whose stored bytes didn't change are copied straight out of the current jar, and only those which did
+ * change carry a VCDIFF delta against their previous version. Deltas are taken between the inflated contents, since a
+ * small change to a class shifts nearly every byte deflated after it, and the result is deflated again at the level
+ * the CI server used; an entry no level reproduces is shipped whole. The deltas are decoded in parallel while the jar
+ * is written out in order behind them, headers and central directory included, so the result is byte for byte the
+ * jar the CI server built and can be checked against its published checksum.
+ * <p>
+ * A patch is a small header, a deflated index describing every entry, and the deltas and new entries themselves,
+ * which are left uncompressed so they can be decoded straight out of the patch file.
+ */
+final class EntryPatch {
+    static final String NAME = "entries.patch";
+
+    private static final int THREADS = Integer.getInteger("com.heliosdecompiler.patchThreads", Runtime.getRuntime().availableProcessors());
+
+    private static final int MAGIC = 0x48454E54;
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 4 + 4 + 64 + 64 + 4 + 4;
+    private static final int MAX_INDEX = 64 * 1024 * 1024;
+    private static final int CHUNK = 64 * 1024;
+
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int LOCAL_HEADER_OFFSET = 42;
+    private static final int CENTRAL_METHOD = 10;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    /**
+     * The levels tried to reproduce a deflated entry, most likely first
+     */
+    private static final int[] LEVELS = {6, 9, 1, 2, 3, 4, 5, 7, 8, 0};
+
+    /**
+     * The entry, headers and all, is the same as in the source jar
+     */
+    private static final int UNCHANGED = 0;
+    /**
+     * The stored bytes are the same as in the source jar, but the headers are not
+     */
+    private static final int COPY = 1;
+    private static final int DELTA = 2;
+    private static final int ADD = 3;
+
+    private EntryPatch() {
+    }
+
+    /**
+     * Writes a patch which turns {@code source} into {@code target}. The patch is applied once before returning, so
+     * a jar laid out in a way this format can't reproduce is refused here rather than on every client.
+     */
+    static void create(File source, File target, File patch) throws IOException {
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try (JarIndex from = JarIndex.open(source);
+             JarIndex to = JarIndex.open(target);
+             DataOutputStream index = new DataOutputStream(indexBytes)) {
+            List<JarIndex.Entry> local = new ArrayList<>(to.entries());
+            local.sort(Comparator.comparingInt(entry -> entry.localHeaderOffset));
+            writeBytes(index, to.slice(0, local.isEmpty() ? to.getDirectoryOffset() : local.get(0).localHeaderOffset));
+            index.writeInt(local.size());
+            for (int i = 0; i < local.size(); i++) {
+                JarIndex.Entry entry = local.get(i);
+                JarIndex.Entry previous = from.get(entry.name);
+                int dataOffset = to.dataOffset(entry);
+                int dataEnd = dataOffset + (int) entry.compressedSize;
+                int next = i + 1 < local.size() ? local.get(i + 1).localHeaderOffset : to.getDirectoryOffset();
+                ByteBuffer raw = to.raw(entry);
+                ByteBuffer header = to.slice(entry.localHeaderOffset, dataOffset - entry.localHeaderOffset);
+                ByteBuffer central = centralHeader(to, entry);
+                ByteBuffer trailer = to.slice(dataEnd, next - dataEnd);
+
+                writeBytes(index, ByteBuffer.wrap(entry.name.getBytes(StandardCharsets.UTF_8)));
+                if (previous != null && from.raw(previous).equals(raw)) {
+                    int previousData = from.dataOffset(previous);
+                    int previousEnd = previousData + (int) previous.compressedSize;
+                    if (from.slice(previous.localHeaderOffset, previousData - previous.localHeaderOffset).equals(header)
+                            && centralHeader(from, previous).equals(central)
+                            && previousEnd + trailer.remaining() <= from.getDirectoryOffset()
+                            && from.slice(previousEnd, trailer.remaining()).equals(trailer)) {
+                        index.writeByte(UNCHANGED);
+                        index.writeInt(trailer.remaining());
+                        continue;
+                    }
+                }
+                if (previous != null && from.raw(previous).equals(raw)) {
+                    writeHeaders(index, COPY, header, central, trailer);
+                    continue;
+                }
+                byte[] content = toArray(raw);
+                byte[] inflated = previous == null ? null : inflate(to, entry);
+                byte[] previousInflated = inflated == null ? null : inflate(from, previous);
+                // An entry the client couldn't deflate back to the same bytes is shipped whole
+                int level = previousInflated == null ? -1 : entry.method == STORED ? 0 : findLevel(inflated, raw);
+                byte[] delta = null;
+                if (level != -1) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    try {
+                        new VcdiffEncoder(new ByteArrayInputStream(previousInflated), new ByteArrayInputStream(inflated), out).encode();
+                    } catch (VcdiffEncodeException e) {
+                        throw new IOException("Could not encode " + entry.name, e);
+                    }
+                    delta = out.toByteArray();
+                }
+                if (delta != null && delta.length < content.length) {
+                    writeHeaders(index, DELTA, header, central, trailer);
+                    index.writeLong(data.size());
+                    index.writeInt(delta.length);
+                    index.writeInt(content.length);
+                    index.writeInt(inflated.length);
+                    index.writeByte(level);
+                    data.write(delta);
+                } else {
+                    writeHeaders(index, ADD, header, central, trailer);
+                    index.writeLong(data.size());
+                    index.writeInt(content.length);
+                    data.write(content);
+                }
+            }
+            Map<JarIndex.Entry, Integer> positions = new IdentityHashMap<>();
+            for (int i = 0; i < local.size(); i++) {
+                positions.put(local.get(i), i);
+            }
+            index.writeInt(to.entries().size());
+            for (JarIndex.Entry entry : to.entries()) {
+                index.writeInt(positions.get(entry));
+            }
+            int commentStart = to.getEndOffset() + 22;
+            writeBytes(index, to.slice(commentStart, to.length() - commentStart));
+        }
+
+        byte[] uncompressed = indexBytes.toByteArray();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try {
+            deflater.setInput(uncompressed);
+            deflater.finish();
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+
+        String targetHash = ArtifactStore.hash(target);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(patch))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(ArtifactStore.hash(source).getBytes(StandardCharsets.US_ASCII));
+            out.write(targetHash.getBytes(StandardCharsets.US_ASCII));
+            out.writeInt(uncompressed.length);
+            out.writeInt(compressed.size());
+            compressed.writeTo(out);
+            data.writeTo(out);
+        }
+
+        File check = File.createTempFile("entries", ".jar", patch.getAbsoluteFile().getParentFile());
+        try {
+            apply(source, null, patch, check);
+        } catch (IOException | VcdiffDecodeException e) {
+            patch.delete();
+            throw new ZipException(target + " can't be rebuilt entry by entry: " + e.getMessage());
+        } finally {
+            check.delete();
+        }
+    }
+
+    /**
+     * Builds the target jar of a patch from {@code source}.
+     *
+     * @param sourceHash the SHA-256 of {@code source}, or null if it isn't known
+     * @return the SHA-256 of the target, computed as it was written
+     * @throws Transfers.ChecksumException if the patch was made for a different jar, or didn't reproduce its target
+     */
+    static String apply(File source, String sourceHash, File patch, File target) throws IOException, VcdiffDecodeException {
+        try (JarIndex from = JarIndex.open(source);
+             Region patchData = Region.open(patch)) {
+            if (patchData.length() < HEADER_LENGTH) {
+                throw new ZipException("Not an entries patch");
+            }
+            ByteBuffer header = patchData.read(0, HEADER_LENGTH);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new ZipException("Not an entries patch");
+            }
+            String expectedSource = readHash(header);
+            String expectedTarget = readHash(header);
+            if (sourceHash != null) {
+                Transfers.verify("the base of " + patch.getName(), expectedSource, sourceHash);
+            }
+            int indexLength = header.getInt();
+            int compressedLength = header.getInt();
+            if (indexLength < 0 || indexLength > MAX_INDEX || compressedLength < 0 || compressedLength > patchData.length() - HEADER_LENGTH) {
+                throw new ZipException("Corrupt entries patch");
+            }
+            Region data = patchData.slice(HEADER_LENGTH + compressedLength, patchData.length() - HEADER_LENGTH - compressedLength);
+            List<Op> ops = new ArrayList<>();
+            ByteBuffer prefix;
+            int[] centralOrder;
+            ByteBuffer comment;
+            // The index is only read from a heap buffer, which is much cheaper than going through a stream
+            ByteBuffer index = ByteBuffer.wrap(inflate(patchData.read(HEADER_LENGTH, compressedLength), indexLength, false, "Entries patch index"));
+            try {
+                prefix = readBytes(index);
+                int count = index.getInt();
+                for (int i = 0; i < count; i++) {
+                    String name = StandardCharsets.UTF_8.decode(readBytes(index)).toString();
+                    int type = index.get();
+                    Op op;
+                    if (type == UNCHANGED) {
+                        JarIndex.Entry previous = from.get(name);
+                        if (previous == null) {
+                            throw new ZipException("Patch refers to " + name + " which isn't in " + source.getName());
+                        }
+                        int previousData = from.dataOffset(previous);
+                        int previousEnd = previousData + (int) previous.compressedSize;
+                        int trailerLength = index.getInt();
+                        if (trailerLength < 0 || previousEnd + trailerLength > from.getDirectoryOffset()) {
+                            throw new ZipException("Trailer of " + name + " is out of range");
+                        }
+                        op = new Op(name, from.slice(previous.localHeaderOffset, previousData - previous.localHeaderOffset), centralHeader(from, previous), from.slice(previousEnd, trailerLength), COPY);
+                    } else {
+                        op = new Op(name, readBytes(index), readBytes(index).order(ByteOrder.LITTLE_ENDIAN), readBytes(index), type);
+                    }
+                    if (op.type == DELTA || op.type == ADD) {
+                        long offset = index.getLong();
+                        int length = index.getInt();
+                        if (offset < 0 || length < 0 || offset + length > data.length()) {
+                            throw new ZipException("Data for " + name + " is out of range");
+                        }
+                        op.data = data.slice(offset, length);
+                        op.targetLength = op.type == DELTA ? index.getInt() : length;
+                        if (op.type == DELTA) {
+                            op.inflatedLength = index.getInt();
+                            op.level = index.get();
+                            if (op.targetLength < 0 || op.inflatedLength < 0 || op.level < 0 || op.level > 9) {
+                                throw new ZipException("Delta for " + name + " is corrupt");
+                            }
+                        }
+                    } else if (op.type != COPY) {
+                        throw new ZipException("Unknown operation " + op.type + " for " + name);
+                    }
+                    if (op.type != ADD) {
+                        op.source = from.get(name);
+                        if (op.source == null) {
+                            throw new ZipException("Patch refers to " + name + " which isn't in " + source.getName());
+                        }
+                    }
+                    ops.add(op);
+                }
+                centralOrder = new int[index.getInt()];
+                for (int i = 0; i < centralOrder.length; i++) {
+                    centralOrder[i] = index.getInt();
+                    if (centralOrder[i] < 0 || centralOrder[i] >= ops.size()) {
+                        throw new ZipException("Corrupt central directory order");
+                    }
+                }
+                comment = readBytes(index);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new ZipException("Entries patch index is corrupt");
+            }
+
+            MessageDigest digest = ArtifactStore.sha256();
+            // With a single core, handing deltas to another thread only adds context switches
+            int priority = Thread.currentThread().getPriority();
+            ExecutorService executor = THREADS <= 1 ? null : Executors.newFixedThreadPool(THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "Helios Entry Decoder");
+                thread.setDaemon(true);
+                thread.setPriority(priority);
+                return thread;
+            });
+            List<Future<ByteBuffer>> decoded = new ArrayList<>(ops.size());
+            try (FileChannelStream out = new FileChannelStream(FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), digest)) {
+                out.write(prefix);
+                // Only a few deltas are decoded ahead of the writer, so at most that many entries are held at once
+                int ahead = THREADS * 4;
+                for (int i = 0; i < ops.size(); i++) {
+                    while (executor != null && decoded.size() < ops.size() && decoded.size() <= i + ahead) {
+                        Op op = ops.get(decoded.size());
+                        decoded.add(op.type == DELTA ? executor.submit(() -> decode(from, op)) : null);
+                    }
+                    Op op = ops.get(i);
+                    op.localHeaderOffset = out.position();
+                    out.write(op.header);
+                    if (op.type == COPY) {
+                        out.write(from.raw(op.source));
+                    } else if (op.type == ADD) {
+                        for (int done = 0; done < op.data.length(); done += CHUNK) {
+                            out.write(op.data.read(done, (int) Math.min(CHUNK, op.data.length() - done)));
+                        }
+                    } else if (executor == null) {
+                        out.write(decode(from, op));
+                    } else {
+                        out.write(decoded.get(i).get());
+                        decoded.set(i, null);
+                    }
+                    out.write(op.trailer);
+                }
+
+                long directoryOffset = out.position();
+                for (int i : centralOrder) {
+                    Op op = ops.get(i);
+                    op.central.putInt(LOCAL_HEADER_OFFSET, (int) op.localHeaderOffset);
+                    out.write(op.central);
+                }
+                long directorySize = out.position() - directoryOffset;
+                ByteBuffer end = ByteBuffer.allocate(22 + comment.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+                end.putInt(END_OF_CENTRAL_DIRECTORY);
+                end.putShort((short) 0);
+                end.putShort((short) 0);
+                end.putShort((short) centralOrder.length);
+                end.putShort((short) centralOrder.length);
+                end.putInt((int) directorySize);
+                end.putInt((int) directoryOffset);
+                end.putShort((short) comment.remaining());
+                end.put(comment);
+                end.flip();
+                out.write(end);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while applying " + patch.getName(), e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof VcdiffDecodeException) {
+                    throw (VcdiffDecodeException) e.getCause();
+                }
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                if (executor != null) {
+                    executor.shutdownNow();
+                }
+            }
+
+            String hash = ArtifactStore.toHex(digest.digest());
+            Transfers.verify("the jar built by " + patch.getName(), expectedTarget, hash);
+            return hash;
+        }
+    }
+
+    private static ByteBuffer decode(JarIndex from, Op op) throws IOException, VcdiffDecodeException {
+        byte[] source = inflate(from, op.source);
+        if (source == null) {
+            throw new ZipException(op.name + " is compressed with an unsupported method");
+        }
+        VcdiffPatcher.BufferTarget target = new VcdiffPatcher.BufferTarget(op.inflatedLength);
+        new VcdiffPatcher(Region.of(ByteBuffer.wrap(source)), op.data, target).decode();
+        ByteBuffer result = target.result();
+        if (result == null) {
+            throw new VcdiffDecodeException("Delta for " + op.name + " is truncated");
+        }
+        if ((op.central.getShort(CENTRAL_METHOD) & 0xFFFF) != DEFLATED) {
+            return result;
+        }
+        ByteBuffer deflated = deflate(toArray(result), op.level, op.targetLength);
+        if (deflated == null) {
+            throw new ZipException(op.name + " doesn't deflate to its original size");
+        }
+        return deflated;
+    }
+
+    /**
+     * @return the contents of a stored or deflated entry, or null if it is compressed some other way
+     */
+    private static byte[] inflate(JarIndex jar, JarIndex.Entry entry) throws IOException {
+        if (entry.method == STORED) {
+            return toArray(jar.raw(entry));
+        }
+        if (entry.method != DEFLATED || entry.size > Integer.MAX_VALUE) {
+            return null;
+        }
+        return inflate(jar.raw(entry), (int) entry.size, true, entry.name);
+    }
+
+    /**
+     * @return the level {@code content} deflates to {@code raw} at, or -1 if there is none
+     */
+    private static int findLevel(byte[] content, ByteBuffer raw) {
+        for (int level : LEVELS) {
+            if (raw.equals(deflate(content, level, raw.remaining()))) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return {@code content} deflated without a zlib wrapper, as zip entries are, or null if it doesn't come out at
+     * exactly {@code length} bytes
+     */
+    private static ByteBuffer deflate(byte[] content, int level, int length) {
+        // One byte more than expected tells a longer result apart from one which just fits
+        byte[] output = new byte[length + 1];
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            int done = 0;
+            while (!deflater.finished() && done < output.length) {
+                done += deflater.deflate(output, done, output.length - done);
+            }
+            return deflater.finished() && done == length ? ByteBuffer.wrap(output, 0, length).slice() : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(ByteBuffer compressed, int length, boolean nowrap, String what) throws ZipException {
+        byte[] input = toArray(compressed);
+        byte[] output = new byte[length];
+        Inflater inflater = new Inflater(nowrap);
+        try {
+            inflater.setInput(input);
+            int done = 0;
+            while (done < length) {
+                int amnt = inflater.inflate(output, done, length - done);
+                if (amnt == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                done += amnt;
+            }
+            if (done != length) {
+                throw new ZipException(what + " is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(what + " is corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return output;
+    }
+
+    private static String readHash(ByteBuffer buffer) {
+        byte[] hash = new byte[64];
+        buffer.get(hash);
+        return new String(hash, StandardCharsets.US_ASCII);
+    }
+
+    private static ByteBuffer readBytes(ByteBuffer index) {
+        int length = index.getInt();
+        ByteBuffer bytes = slice(index, index.position(), length);
+        index.position(index.position() + length);
+        return bytes;
+    }
+
+    private static void writeHeaders(DataOutputStream out, int type, ByteBuffer header, ByteBuffer central, ByteBuffer trailer) throws IOException {
+        out.writeByte(type);
+        writeBytes(out, header);
+        writeBytes(out, central);
+        writeBytes(out, trailer);
+    }
+
+    private static void writeBytes(DataOutputStream out, ByteBuffer bytes) throws IOException {
+        out.writeInt(bytes.remaining());
+        out.write(toArray(bytes));
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return a copy of the central directory record of an entry, without the offset of its local header
+     */
+    private static ByteBuffer centralHeader(JarIndex jar, JarIndex.Entry entry) throws IOException {
+        ByteBuffer central = ByteBuffer.wrap(toArray(jar.slice(entry.centralHeaderOffset, entry.centralHeaderLength))).order(ByteOrder.LITTLE_ENDIAN);
+        central.putInt(LOCAL_HEADER_OFFSET, 0);
+        return central;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(position + length);
+        slice.position(position);
+        return slice.slice();
+    }
+
+    private static final class Op {
+        final String name;
+        final ByteBuffer header;
+        final ByteBuffer central;
+        final ByteBuffer trailer;
+        final int type;
+        JarIndex.Entry source;
+        Region data;
+        int targetLength;
+        int inflatedLength;
+        int level;
+        long localHeaderOffset;
+
+        Op(String name, ByteBuffer header, ByteBuffer central, ByteBuffer trailer, int type) {
+            this.name = name;
+            this.header = header;
+            this.central = central;
+            this.trailer = trailer;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.zip.Adler32;
+
+/**
+ * An append-only output file which batches writes in a fixed-size direct buffer but can still read back
+ * anything written so far. The decoder writes the target in many small pieces, often a single byte at a
+ * time, so this avoids a system call per instruction while keeping memory usage constant.
+ */
+class FileChannelStream implements Closeable, VcdiffPatcher.Target {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] scratch = new byte[BUFFER_SIZE];
+    private final Adler32 checksum = new Adler32();
+    private final MessageDigest digest;
+
+    /**
+     * Offset in the file of the first buffered byte
+     */
+    private long bufferStart;
+
+    FileChannelStream(FileChannel channel) throws IOException {
+        this(channel, null);
+    }
+
+    /**
+     * @param digest updated with everything appended to the file, in order, may be null
+     */
+    FileChannelStream(FileChannel channel, MessageDigest digest) throws IOException {
+        this.channel = channel;
+        this.digest = digest;
+        this.bufferStart = channel.size();
+    }
+
+    @Override
+    public long position() {
+        return bufferStart + buffer.position();
+    }
+
+    /**
+     * Adler32 of everything written since the last call to {@link #resetChecksum()}
+     */
+    @Override
+    public long checksum() {
+        return checksum.getValue();
+    }
+
+    @Override
+    public void resetChecksum() {
+        checksum.reset();
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        checksum.update(data.duplicate());
+        if (data.remaining() > buffer.remaining()) {
+            flush();
+            if (data.remaining() > buffer.capacity()) {
+                if (digest != null) {
+                    digest.update(data.duplicate());
+                }
+                while (data.hasRemaining()) {
+                    bufferStart += channel.write(data, bufferStart);
+                }
+                return;
+            }
+        }
+        buffer.put(data);
+    }
+
+    void write(byte[] data, int offset, int length) throws IOException {
+        write(ByteBuffer.wrap(data, offset, length));
+    }
+
+    @Override
+    public void writeRun(byte value, int count) throws IOException {
+        while (count > 0) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int amnt = Math.min(count, buffer.remaining());
+            for (int i = 0; i < amnt; i++) {
+                buffer.put(value);
+                checksum.update(value);
+            }
+            count -= amnt;
+        }
+    }
+
+    /**
+     * Appends {@code length} bytes which were previously written at {@code from}. The ranges may overlap,
+     * in which case the result is the same as copying one byte at a time.
+     */
+    @Override
+    public void copyWithin(long from, int length) throws IOException {
+        while (length > 0) {
+            int amnt = (int) Math.min(Math.min(length, position() - from), scratch.length);
+            read(from, scratch, amnt);
+            write(scratch, 0, amnt);
+            from += amnt;
+            length -= amnt;
+        }
+    }
+
+    /**
+     * Maps a range which has already been written. On Windows, where the target couldn't be moved into place while
+     * it is mapped (see {@link Region}), the range is read on demand instead.
+     */
+    @Override
+    public Region segment(long from, int length) throws IOException {
+        flush();
+        if (!Transfers.WINDOWS) {
+            return Region.of(channel.map(FileChannel.MapMode.READ_ONLY, from, length));
+        }
+        return new Region() {
+            @Override
+            long length() {
+                return length;
+            }
+
+            @Override
+            ByteBuffer read(long position, int count) throws IOException {
+                checkBounds(position, count, length);
+                byte[] data = new byte[count];
+                FileChannelStream.this.read(from + position, data, count);
+                return ByteBuffer.wrap(data);
+            }
+        };
+    }
+
+    private void read(long from, byte[] data, int length) throws IOException {
+        if (from >= bufferStart) {
+            ByteBuffer view = buffer.duplicate();
+            view.flip();
+            view.position((int) (from - bufferStart));
+            view.get(data, 0, length);
+            return;
+        }
+        flush();
+        ByteBuffer wrapped = ByteBuffer.wrap(data, 0, length);
+        while (wrapped.hasRemaining()) {
+            if (channel.read(wrapped, from + wrapped.position()) == -1) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        if (digest != null) {
+            digest.update(buffer.duplicate());
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, bufferStart + buffer.position());
+        }
+        bufferStart += buffer.limit();
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.awt.AWTEvent;
+import java.awt.Toolkit;
+import java.awt.event.AWTEventListener;
+import java.awt.event.WindowEvent;
+import java.io.File;
+
+/**
+ * Times how long Helios takes from being handed control to opening its first window, which is what a user actually
+ * waits for.
+ * <p>
+ * Watching for the window means starting AWT before Helios does, so this only happens when a timing report was
+ * asked for. The report of such a launch is then written when the window opens, rather than when main returns.
+ * Only AWT windows are seen; if Helios never opens one, the report is written without it when the JVM exits.
+ */
+final class FirstWindow {
+    private FirstWindow() {
+    }
+
+    /**
+     * @return true if the launch report will be written by this class
+     */
+    static boolean arm(File dataDirectory) {
+        if (!Timings.isReporting() || Reporter.isHeadless()) {
+            return false;
+        }
+        Timings.Phase phase = Timings.begin("firstWindow");
+        Toolkit.getDefaultToolkit().addAWTEventListener(new AWTEventListener() {
+            @Override
+            public void eventDispatched(AWTEvent event) {
+                if (event.getID() == WindowEvent.WINDOW_OPENED) {
+                    Toolkit.getDefaultToolkit().removeAWTEventListener(this);
+                    phase.close();
+                    Timings.report(dataDirectory, "launched");
+                }
+            }
+        }, AWTEvent.WINDOW_EVENT_MASK);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> Timings.report(dataDirectory, "launched"), "Helios Timing Report"));
+        return true;
+    }
+}
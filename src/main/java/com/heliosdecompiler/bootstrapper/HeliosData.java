@@ -4,4 +4,5 @@ public class HeliosData {
     public int buildNumber;
     public String version;
     public String mainClass;
+    public String hash;
 }
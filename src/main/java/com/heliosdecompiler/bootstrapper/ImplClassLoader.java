@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilePermission;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.security.PermissionCollection;
+import java.security.SecureClassLoader;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+/**
+ * Loads the implementation straight out of a {@link JarIndex}, as a drop-in for
+ * {@code new URLClassLoader(new URL[]{jar}, null)}.
+ * <p>
+ * Classes get the same code source and packages get the same manifest attributes as under URLClassLoader, and
+ * resources are exposed as the same {@code jar:} URLs. The loader is parallel capable, so classes in different
+ * packages can be defined concurrently. Signed jars are not verified, which is also true of everything the CI
+ * server publishes.
+ */
+class ImplClassLoader extends SecureClassLoader {
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final JarIndex jar;
+    private final URL location;
+    private final String resourcePrefix;
+    private final CodeSource codeSource;
+    private final Manifest manifest;
+
+    private volatile List<String> recording;
+
+    ImplClassLoader(JarIndex jar) throws IOException {
+        super(null);
+        this.jar = jar;
+        this.location = jar.getFile().toURI().toURL();
+        this.resourcePrefix = "jar:" + location + "!/";
+        this.codeSource = new CodeSource(location, (Certificate[]) null);
+        JarIndex.Entry manifestEntry = jar.get("META-INF/MANIFEST.MF");
+        this.manifest = manifestEntry != null ? new Manifest(new ByteArrayInputStream(jar.read(manifestEntry))) : null;
+    }
+
+    /**
+     * Creates a loader for {@code file}, falling back to a URLClassLoader for jars {@link JarIndex} can't read.
+     */
+    static ClassLoader create(File file) throws MalformedURLException {
+        try {
+            return new ImplClassLoader(JarIndex.open(file));
+        } catch (IOException e) {
+            System.out.println("Could not index " + file.getName() + ", using URLClassLoader: " + e.getMessage());
+            return new URLClassLoader(new URL[]{file.toURI().toURL()}, null);
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        JarIndex.Entry entry = jar.get(name.replace('.', '/').concat(".class"));
+        if (entry == null) {
+            throw new ClassNotFoundException(name);
+        }
+        byte[] bytes;
+        try {
+            bytes = jar.read(entry);
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+        int lastDot = name.lastIndexOf('.');
+        if (lastDot != -1) {
+            definePackageIfNeeded(name.substring(0, lastDot), entry.name);
+        }
+        Class<?> defined = defineClass(name, bytes, 0, bytes.length, codeSource);
+        List<String> recording = this.recording;
+        if (recording != null) {
+            // Noted once defined, so a class always comes after its superclass and interfaces
+            recording.add(name);
+        }
+        return defined;
+    }
+
+    /**
+     * Starts noting down every class this loader defines, in the order they are defined.
+     */
+    void startRecording() {
+        recording = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    /**
+     * @return the classes defined since recording started, or null if this loader isn't recording
+     */
+    List<String> stopRecording() {
+        List<String> recorded = recording;
+        recording = null;
+        return recorded;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    protected PermissionCollection getPermissions(CodeSource codesource) {
+        // URLClassLoader grants read access to the jar it loaded the class from
+        PermissionCollection permissions = super.getPermissions(codesource);
+        permissions.add(new FilePermission(jar.getFile().getPath(), "read"));
+        return permissions;
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        if (jar.get(name) == null) {
+            return null;
+        }
+        try {
+            return new URL(resourcePrefix + name);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) {
+        URL url = findResource(name);
+        return url != null ? Collections.enumeration(Collections.singletonList(url)) : Collections.emptyEnumeration();
+    }
+
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        URL url = getResource(name);
+        if (url == null) {
+            return null;
+        }
+        if (url.toString().startsWith(resourcePrefix)) {
+            // Skip the JarURLConnection machinery for our own entries
+            try {
+                return new ByteArrayInputStream(jar.read(jar.get(name)));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        try {
+            return url.openStream();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void definePackageIfNeeded(String packageName, String entryName) {
+        if (getPackage(packageName) != null) {
+            return;
+        }
+        try {
+            if (manifest == null) {
+                definePackage(packageName, null, null, null, null, null, null, null);
+                return;
+            }
+            String path = entryName.substring(0, entryName.lastIndexOf('/') + 1);
+            Attributes section = manifest.getAttributes(path);
+            Attributes main = manifest.getMainAttributes();
+            definePackage(packageName,
+                    attribute(section, main, Attributes.Name.SPECIFICATION_TITLE),
+                    attribute(section, main, Attributes.Name.SPECIFICATION_VERSION),
+                    attribute(section, main, Attributes.Name.SPECIFICATION_VENDOR),
+                    attribute(section, main, Attributes.Name.IMPLEMENTATION_TITLE),
+                    attribute(section, main, Attributes.Name.IMPLEMENTATION_VERSION),
+                    attribute(section, main, Attributes.Name.IMPLEMENTATION_VENDOR),
+                    "true".equalsIgnoreCase(attribute(section, main, Attributes.Name.SEALED)) ? location : null);
+        } catch (IllegalArgumentException ignored) {
+            // Another thread defined it first
+        }
+    }
+
+    private static String attribute(Attributes section, Attributes main, Attributes.Name name) {
+        String value = section != null ? section.getValue(name) : null;
+        return value != null ? value : main.getValue(name);
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the first running Helios instance reachable over a loopback socket, so later launches can hand it their
+ * arguments and exit instead of starting another JVM.
+ * <p>
+ * The running instance holds an exclusive lock on {@code instance.lock} for as long as it lives, which the OS
+ * releases if it dies, so a lock file left behind by a crash is never mistaken for a live instance. The port and a
+ * random token are published in {@code instance.port}; clients must present the token, so other local users can't
+ * feed arguments to someone else's Helios. Set {@code com.heliosdecompiler.daemon} to false to always start a new
+ * instance.
+ */
+final class InstanceServer {
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("com.heliosdecompiler.daemon", "true"));
+
+    private static final int MAGIC = 0x48454C49;
+    private static final int VERSION = 1;
+
+    private static final int OK = 0;
+    private static final int UNSUPPORTED_VERSION = 1;
+    private static final int BAD_TOKEN = 2;
+    private static final int FAILED = 3;
+
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final int READ_TIMEOUT = 10000;
+    private static final int MAX_ARGS = 1024;
+
+    private static FileLock lock;
+    private static ServerSocket serverSocket;
+
+    // Forwarded launches run one at a time, in the order they arrived
+    private static final ExecutorService LAUNCHER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Helios Instance Launcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private InstanceServer() {
+    }
+
+    /**
+     * Hands {@code args} to the running instance, if there is one.
+     *
+     * @return true if the running instance accepted them, false if this launch should start Helios itself
+     */
+    static boolean forward(File dataDirectory, String[] args) {
+        if (!ENABLED || isUnlocked(new File(dataDirectory, "instance.lock"))) {
+            return false;
+        }
+        File portFile = new File(dataDirectory, "instance.port");
+        int port;
+        String token;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(portFile))) {
+            port = in.readInt();
+            token = in.readUTF();
+        } catch (IOException e) {
+            // The instance is still starting up, or crashed before publishing its port
+            return false;
+        }
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(token);
+            out.writeInt(args.length);
+            for (String arg : absolutize(args, new File(System.getProperty("user.dir")))) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            int status = new DataInputStream(socket.getInputStream()).readInt();
+            if (status != OK) {
+                System.out.println("Running Helios instance refused arguments (status " + status + ")");
+            }
+            return status == OK;
+        } catch (IOException e) {
+            System.out.println("Could not reach running Helios instance: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Starts accepting arguments from later launches, which are passed to {@code main}. Does nothing if another
+     * instance is already serving.
+     */
+    static void start(File dataDirectory, Method main) {
+        if (!ENABLED) {
+            return;
+        }
+        try {
+            FileChannel lockChannel = FileChannel.open(new File(dataDirectory, "instance.lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = lockChannel.tryLock();
+            if (lock == null) {
+                lockChannel.close();
+                return;
+            }
+
+            ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            synchronized (InstanceServer.class) {
+                InstanceServer.lock = lock;
+                InstanceServer.serverSocket = serverSocket;
+            }
+            byte[] secret = new byte[16];
+            new SecureRandom().nextBytes(secret);
+            String token = ArtifactStore.toHex(secret);
+            publish(new File(dataDirectory, "instance.port"), serverSocket.getLocalPort(), token);
+
+            ExecutorService handlers = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "Helios Instance Client");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Thread acceptor = new Thread(() -> {
+                // The lock and socket are held until the JVM exits, unless this instance is about to be replaced
+                try {
+                    while (lock.isValid()) {
+                        Socket socket = serverSocket.accept();
+                        handlers.execute(() -> handle(socket, token, main));
+                    }
+                } catch (IOException e) {
+                    System.out.println("Helios instance server stopped: " + e.getMessage());
+                }
+            }, "Helios Instance Server");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        } catch (IOException | OverlappingFileLockException e) {
+            System.out.println("Could not start Helios instance server: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops accepting arguments and gives up the lock, so a replacement instance can take over before this one exits.
+     */
+    static synchronized void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            if (lock != null) {
+                lock.channel().close();
+            }
+        } catch (IOException ignored) {
+        }
+        serverSocket = null;
+        lock = null;
+    }
+
+    private static void handle(Socket socket, String token, Method main) {
+        try (Socket client = socket) {
+            client.setSoTimeout(READ_TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            if (in.readInt() != MAGIC) {
+                return;
+            }
+            if (in.readInt() != VERSION) {
+                out.writeInt(UNSUPPORTED_VERSION);
+                return;
+            }
+            if (!token.equals(in.readUTF())) {
+                out.writeInt(BAD_TOKEN);
+                return;
+            }
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ARGS) {
+                out.writeInt(FAILED);
+                return;
+            }
+            String[] args = new String[count];
+            for (int i = 0; i < count; i++) {
+                args[i] = in.readUTF();
+            }
+            // main can take longer than the client waits for an answer, and a client which gives up starts an instance
+            // of its own, so the arguments are acknowledged as soon as they are in
+            out.writeInt(OK);
+            out.flush();
+            LAUNCHER.execute(() -> invoke(main, args));
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Runs the implementation's main method again. Failures are shown here, as the client has already exited.
+     */
+    private static void invoke(Method main, String[] args) {
+        try {
+            System.getProperties().put("com.heliosdecompiler.args", args);
+            main.invoke(null, new Object[]{args});
+        } catch (Throwable t) {
+            Bootstrapper.displayError(t);
+        }
+    }
+
+    /**
+     * The running instance was started from a directory of its own, so arguments naming a file relative to the
+     * directory this launch was started from are made absolute before they are handed over. Options, and anything
+     * which isn't an existing file, are passed through as they are.
+     */
+    static String[] absolutize(String[] args, File directory) {
+        String[] result = args.clone();
+        for (int i = 0; i < result.length; i++) {
+            if (result[i].isEmpty() || result[i].startsWith("-") || new File(result[i]).isAbsolute()) {
+                continue;
+            }
+            File file = new File(directory, result[i]);
+            if (file.exists()) {
+                result[i] = file.getAbsolutePath();
+            }
+        }
+        return result;
+    }
+
+    private static boolean isUnlocked(File lockFile) {
+        if (!lockFile.exists()) {
+            return true;
+        }
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                lock.release();
+                return true;
+            }
+            return false;
+        } catch (OverlappingFileLockException e) {
+            // Held by this JVM
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static void publish(File portFile, int port, String token) throws IOException {
+        File temp = new File(portFile.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+            out.writeInt(port);
+            out.writeUTF(token);
+        }
+        try {
+            Files.setPosixFilePermissions(temp.toPath(), PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException ignored) {
+        }
+        Files.move(temp.toPath(), portFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
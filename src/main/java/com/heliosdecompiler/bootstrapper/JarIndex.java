@@ -0,0 +1,283 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A read-only view of a jar, indexed once from its central directory.
+ * <p>
+ * The jar is read as a {@link Region}, so it is memory-mapped except on Windows, where entries are read on demand
+ * and only the central directory is read up front. Entries are located through a hash map instead of going through
+ * {@link java.util.zip.ZipFile}.
+ * Only what the bootstrapper produces and consumes is supported: stored and deflated entries, no ZIP64, no encryption.
+ */
+final class JarIndex implements Closeable {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+    private static final int END_LENGTH = 22;
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private final File file;
+    private final Region data;
+    private final int length;
+    private final List<Entry> entries;
+    private final Map<String, Entry> byName;
+    private final int directoryOffset;
+    private final int end;
+
+    private JarIndex(File file, Region data) throws IOException {
+        this.file = file;
+        this.data = data;
+        this.length = (int) data.length();
+
+        this.end = findEndOfCentralDirectory();
+        ByteBuffer record = slice(end, END_LENGTH);
+        int count = record.getShort(10) & 0xFFFF;
+        long directorySize = record.getInt(12) & 0xFFFFFFFFL;
+        long directoryOffset = record.getInt(16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+            throw new ZipException("ZIP64 jars are not supported");
+        }
+        if (directoryOffset + directorySize > end) {
+            throw new ZipException("Central directory is out of range");
+        }
+        this.directoryOffset = (int) directoryOffset;
+        // Positions in the directory are relative to its start
+        ByteBuffer directory = slice(this.directoryOffset, end - this.directoryOffset);
+        List<Entry> entries = new ArrayList<>(count);
+        Map<String, Entry> byName = new HashMap<>(count * 2);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_LENGTH > directory.limit() || directory.getInt(position) != CENTRAL_HEADER) {
+                throw new ZipException("Invalid central directory header at " + (directoryOffset + position));
+            }
+            int flags = directory.getShort(position + 8) & 0xFFFF;
+            int method = directory.getShort(position + 10) & 0xFFFF;
+            long crc = directory.getInt(position + 16) & 0xFFFFFFFFL;
+            long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+            long size = directory.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+            if ((flags & 1) != 0) {
+                throw new ZipException("Encrypted entries are not supported");
+            }
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) {
+                throw new ZipException("ZIP64 entries are not supported");
+            }
+            int length = CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+            if (position + length > directory.limit()) {
+                throw new ZipException("Invalid central directory header at " + (directoryOffset + position));
+            }
+            byte[] name = new byte[nameLength];
+            ByteBuffer nameBuffer = directory.duplicate();
+            nameBuffer.position(position + CENTRAL_HEADER_LENGTH);
+            nameBuffer.get(name);
+
+            Entry entry = new Entry(new String(name, StandardCharsets.UTF_8), method, crc, compressedSize, size, (int) localHeaderOffset, this.directoryOffset + position, length);
+            entries.add(entry);
+            // Like ZipFile, the first of several entries with the same name wins
+            byName.putIfAbsent(entry.name, entry);
+            position += length;
+        }
+        this.entries = Collections.unmodifiableList(entries);
+        this.byName = byName;
+    }
+
+    /**
+     * Indexes a jar, which is kept open until the index is closed.
+     */
+    static JarIndex open(File file) throws IOException {
+        Region data = Region.open(file);
+        try {
+            if (data.length() > Integer.MAX_VALUE) {
+                throw new ZipException("Jar is too large");
+            }
+            return new JarIndex(file, data);
+        } catch (IOException | RuntimeException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the entry with the given name, or null
+     */
+    Entry get(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @return every entry in central directory order
+     */
+    List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * @return the bytes of the entry as stored in the jar, still compressed if it is deflated
+     */
+    ByteBuffer raw(Entry entry) throws IOException {
+        return slice(dataOffset(entry), (int) entry.compressedSize);
+    }
+
+    /**
+     * @return where the stored bytes of the entry start, right after its local header
+     */
+    int dataOffset(Entry entry) throws IOException {
+        int offset = entry.localHeaderOffset;
+        if (offset + LOCAL_HEADER_LENGTH > length) {
+            throw new ZipException("Invalid local header for " + entry.name);
+        }
+        ByteBuffer header = slice(offset, LOCAL_HEADER_LENGTH);
+        if (header.getInt(0) != LOCAL_HEADER) {
+            throw new ZipException("Invalid local header for " + entry.name);
+        }
+        // The local header can carry a different extra field from the central directory
+        int start = offset + LOCAL_HEADER_LENGTH + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        if (start + entry.compressedSize > length) {
+            throw new ZipException("Entry " + entry.name + " is out of range");
+        }
+        return start;
+    }
+
+    int getDirectoryOffset() {
+        return directoryOffset;
+    }
+
+    /**
+     * @return the offset of the end of central directory record
+     */
+    int getEndOffset() {
+        return end;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return the uncompressed contents of the entry
+     */
+    byte[] read(Entry entry) throws IOException {
+        ByteBuffer raw = raw(entry);
+        byte[] content = new byte[(int) entry.size];
+        if (entry.method == STORED) {
+            raw.get(content);
+            return content;
+        }
+        if (entry.method != DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+        byte[] compressed = new byte[raw.remaining()];
+        raw.get(compressed);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < content.length) {
+                int amnt = inflater.inflate(content, length, content.length - length);
+                if (amnt == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += amnt;
+            }
+            if (length != content.length) {
+                throw new ZipException("Entry " + entry.name + " is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Entry " + entry.name + " is corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return content;
+    }
+
+    /**
+     * @return any range of the jar, in a little-endian buffer
+     */
+    ByteBuffer slice(int position, int length) throws IOException {
+        return data.read(position, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+
+    private int findEndOfCentralDirectory() throws IOException {
+        if (length < END_LENGTH) {
+            throw new ZipException("Not a jar: end of central directory not found");
+        }
+        // The record is followed by a comment of at most 65535 bytes
+        int min = Math.max(0, length - END_LENGTH - 0xFFFF);
+        ByteBuffer tail = slice(min, length - min);
+        for (int position = tail.limit() - END_LENGTH; position >= 0; position--) {
+            if (tail.getInt(position) == END_OF_CENTRAL_DIRECTORY) {
+                return min + position;
+            }
+        }
+        throw new ZipException("Not a jar: end of central directory not found");
+    }
+
+    static final class Entry {
+        final String name;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final int localHeaderOffset;
+        final int centralHeaderOffset;
+        final int centralHeaderLength;
+
+        Entry(String name, int method, long crc, long compressedSize, long size, int localHeaderOffset, int centralHeaderOffset, int centralHeaderLength) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+            this.centralHeaderOffset = centralHeaderOffset;
+            this.centralHeaderLength = centralHeaderLength;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The JFR events behind {@link Timings}. {@code jdk.jfr} is only reached through reflection, so the bootstrapper
+ * still compiles and shrinks against a JDK 8 class library which doesn't have it, and this class is only loaded on
+ * JVMs which do. The event types are defined at runtime through {@code jdk.jfr.EventFactory} and events are passed
+ * around as plain objects.
+ * <p>
+ * Defining the first event type starts up the whole of JFR, which takes hundreds of milliseconds, so that is only
+ * done once a recording has already started it.
+ */
+final class JfrEvents {
+    private static final String JFR = "jdk.jfr.";
+
+    private static final Method IS_INITIALIZED;
+    private static final Method NEW_EVENT;
+    private static final Method SET;
+    private static final Method BEGIN;
+    private static final Method END;
+    private static final Method SHOULD_COMMIT;
+    private static final Method COMMIT;
+
+    static {
+        try {
+            IS_INITIALIZED = Class.forName(JFR + "FlightRecorder").getMethod("isInitialized");
+            NEW_EVENT = Class.forName(JFR + "EventFactory").getMethod("newEvent");
+            Class<?> event = Class.forName(JFR + "Event");
+            SET = event.getMethod("set", int.class, Object.class);
+            BEGIN = event.getMethod("begin");
+            END = event.getMethod("end");
+            SHOULD_COMMIT = event.getMethod("shouldCommit");
+            COMMIT = event.getMethod("commit");
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static Object phaseFactory;
+    private static Object patchFactory;
+    private static boolean broken;
+
+    private JfrEvents() {
+    }
+
+    static boolean isRecording() {
+        try {
+            return !broken && (Boolean) IS_INITIALIZED.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the started event, or null if JFR wouldn't create one
+     */
+    static Object begin(boolean patch) {
+        try {
+            Object event = NEW_EVENT.invoke(factory(patch));
+            BEGIN.invoke(event);
+            return event;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Timing must never get in the way of launching, so JFR is left alone from now on
+            System.out.println("Could not create JFR event: " + e);
+            broken = true;
+            return null;
+        }
+    }
+
+    static void commit(Object event, String name, int buildNumber, long bytes) {
+        try {
+            SET.invoke(event, 0, name);
+            SET.invoke(event, 1, buildNumber);
+            SET.invoke(event, 2, bytes);
+            END.invoke(event);
+            if ((Boolean) SHOULD_COMMIT.invoke(event)) {
+                COMMIT.invoke(event);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Could not commit JFR event: " + e);
+            broken = true;
+        }
+    }
+
+    private static synchronized Object factory(boolean patch) throws ReflectiveOperationException {
+        if (patch) {
+            if (patchFactory == null) {
+                patchFactory = create("com.heliosdecompiler.bootstrapper.Patch", "Bootstrapper Patch",
+                        "Downloading, fetching the patch of or decoding a single Helios build",
+                        field(String.class, "step", "Step", null),
+                        field(int.class, "buildNumber", "Build Number", null),
+                        field(long.class, "bytes", "Bytes", null, annotation("DataAmount", "BYTES")));
+            }
+            return patchFactory;
+        }
+        if (phaseFactory == null) {
+            phaseFactory = create("com.heliosdecompiler.bootstrapper.Phase", "Bootstrapper Phase",
+                    "A step of launching or updating Helios",
+                    field(String.class, "phase", "Phase", null),
+                    field(int.class, "buildNumber", "Build Number", "The Helios build the phase worked on, or -1"),
+                    field(long.class, "bytes", "Bytes", "How much data the phase read or wrote, or -1", annotation("DataAmount", "BYTES")));
+        }
+        return phaseFactory;
+    }
+
+    /**
+     * Fields are set by index, so they must be given in the order {@link #commit} sets them.
+     */
+    private static Object create(String name, String label, String description, Object... fields) throws ReflectiveOperationException {
+        List<Object> annotations = Arrays.asList(
+                annotation("Name", name),
+                annotation("Label", label),
+                annotation("Category", new String[]{"Helios"}),
+                annotation("Description", description));
+        return Class.forName(JFR + "EventFactory").getMethod("create", List.class, List.class)
+                .invoke(null, annotations, Arrays.asList(fields));
+    }
+
+    private static Object field(Class<?> type, String name, String label, String description, Object... extra) throws ReflectiveOperationException {
+        List<Object> annotations = new ArrayList<>();
+        annotations.add(annotation("Label", label));
+        if (description != null) {
+            annotations.add(annotation("Description", description));
+        }
+        annotations.addAll(Arrays.asList(extra));
+        return Class.forName(JFR + "ValueDescriptor").getConstructor(Class.class, String.class, List.class)
+                .newInstance(type, name, annotations);
+    }
+
+    private static Object annotation(String type, Object value) throws ReflectiveOperationException {
+        Constructor<?> constructor = Class.forName(JFR + "AnnotationElement").getConstructor(Class.class, Object.class);
+        return constructor.newInstance(Class.forName(JFR + type), value);
+    }
+}
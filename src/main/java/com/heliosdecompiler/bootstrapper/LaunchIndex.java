@@ -0,0 +1,217 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small binary cache of what was last read from the bootstrapper and implementation manifests, so a normal launch
+ * only has to stat both jars instead of opening them.
+ * <p>
+ * Each install, one per channel, has a record of its own, so launching channels in turn doesn't keep replacing the
+ * other's record. A record is only valid for the size, modification time and file key of the jar it was read from.
+ * Switching builds replaces the implementation file with a different link, so any update or rollback invalidates
+ * the record without the index having to be told about it.
+ */
+final class LaunchIndex {
+    private static final int MAGIC = 0x484C4958;
+    private static final int VERSION = 2;
+
+    private final File file;
+
+    private Stamp bootstrapperStamp;
+    /**
+     * Keyed by the absolute path of each install's implementation jar
+     */
+    private final Map<String, Record> implementations = new LinkedHashMap<>();
+
+    private LaunchIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the index. A missing or unreadable index is treated as empty.
+     */
+    static LaunchIndex load(File file) {
+        LaunchIndex index = new LaunchIndex(file);
+        if (!file.isFile()) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return index;
+            }
+            Stamp bootstrapperStamp = Stamp.read(in);
+            Map<String, Record> implementations = new LinkedHashMap<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                Stamp stamp = Stamp.read(in);
+                HeliosData implementation = new HeliosData();
+                implementation.buildNumber = in.readInt();
+                implementation.version = readNullable(in);
+                implementation.mainClass = readNullable(in);
+                implementation.hash = readNullable(in);
+                implementations.put(path, new Record(stamp, implementation));
+            }
+            index.bootstrapperStamp = bootstrapperStamp;
+            index.implementations.putAll(implementations);
+        } catch (IOException ignored) {
+        }
+        return index;
+    }
+
+    /**
+     * @return true if the manifest of this exact bootstrapper file has already been checked
+     */
+    synchronized boolean isBootstrapperVerified(File bootstrapper) {
+        return bootstrapperStamp != null && bootstrapperStamp.equals(Stamp.of(bootstrapper));
+    }
+
+    synchronized void setBootstrapperVerified(File bootstrapper) throws IOException {
+        bootstrapperStamp = Stamp.of(bootstrapper);
+        save();
+    }
+
+    /**
+     * @return the metadata recorded for {@code jar}, or null if there is none or the jar has changed since
+     */
+    synchronized HeliosData getImplementation(File jar) {
+        Record record = implementations.get(jar.getAbsolutePath());
+        if (record == null || record.stamp == null || !record.stamp.equals(Stamp.of(jar))) {
+            return null;
+        }
+        HeliosData implementation = record.implementation;
+        HeliosData data = new HeliosData();
+        data.buildNumber = implementation.buildNumber;
+        data.version = implementation.version;
+        data.mainClass = implementation.mainClass;
+        data.hash = implementation.hash;
+        return data;
+    }
+
+    synchronized void setImplementation(File jar, HeliosData data) throws IOException {
+        implementations.put(jar.getAbsolutePath(), new Record(Stamp.of(jar), data));
+        save();
+    }
+
+    private void save() throws IOException {
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            Stamp.write(out, bootstrapperStamp);
+            out.writeInt(implementations.size());
+            for (Map.Entry<String, Record> entry : implementations.entrySet()) {
+                HeliosData implementation = entry.getValue().implementation;
+                out.writeUTF(entry.getKey());
+                Stamp.write(out, entry.getValue().stamp);
+                out.writeInt(implementation.buildNumber);
+                writeNullable(out, implementation.version);
+                writeNullable(out, implementation.mainClass);
+                writeNullable(out, implementation.hash);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static class Record {
+        private final Stamp stamp;
+        private final HeliosData implementation;
+
+        private Record(Stamp stamp, HeliosData implementation) {
+            this.stamp = stamp;
+            this.implementation = implementation;
+        }
+    }
+
+    private static class Stamp {
+        private final long size;
+        private final long modified;
+        private final String key;
+
+        private Stamp(long size, long modified, String key) {
+            this.size = size;
+            this.modified = modified;
+            this.key = key;
+        }
+
+        /**
+         * @return the stamp of the file as it is now, or null if it can't be read
+         */
+        static Stamp of(File file) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                // The file key (device and inode on Unix) tells apart builds which happen to share a size and mtime
+                Object key = attributes.fileKey();
+                return new Stamp(attributes.size(), attributes.lastModifiedTime().toMillis(), key != null ? key.toString() : "");
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        static Stamp read(DataInputStream in) throws IOException {
+            return in.readBoolean() ? new Stamp(in.readLong(), in.readLong(), in.readUTF()) : null;
+        }
+
+        static void write(DataOutputStream out, Stamp stamp) throws IOException {
+            out.writeBoolean(stamp != null);
+            if (stamp != null) {
+                out.writeLong(stamp.size);
+                out.writeLong(stamp.modified);
+                out.writeUTF(stamp.key);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Stamp)) {
+                return false;
+            }
+            Stamp other = (Stamp) o;
+            return size == other.size && modified == other.modified && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(modified);
+        }
+    }
+}
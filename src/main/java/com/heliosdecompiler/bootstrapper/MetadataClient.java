@@ -0,0 +1,248 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Fetches build metadata from the CI server through an on-disk cache laid out like the server itself.
+ * <p>
+ * The latest build number is trusted for {@code com.heliosdecompiler.metadataTtl} milliseconds, then revalidated with
+ * a conditional request. If the server can't be reached the cached value is used regardless of its age. The JSON of a
+ * finished build never changes, so it is kept for good once fetched.
+ */
+class MetadataClient {
+    private static final long TTL = Long.getLong("com.heliosdecompiler.metadataTtl", 10 * 60 * 1000);
+
+    private final Mirrors mirrors;
+    private final File directory;
+
+    MetadataClient(Mirrors mirrors, File directory) {
+        this.mirrors = mirrors;
+        this.directory = directory;
+    }
+
+    /**
+     * @param channel    the CI permalink to follow, such as {@code lastStableBuild}
+     * @param revalidate whether to check with the server even if the cached value hasn't expired
+     */
+    int getLatestBuild(String channel, boolean revalidate) throws IOException {
+        String path = channel + "/buildNumber";
+        File cached = new File(directory, path);
+        File metaFile = new File(directory, path + ".meta");
+        Properties meta = new Properties();
+        if (cached.exists() && metaFile.exists()) {
+            try (InputStream in = new FileInputStream(metaFile)) {
+                meta.load(in);
+            } catch (IOException ignored) {
+            }
+        }
+        long fetched = parseLong(meta.getProperty("fetched"));
+        if (!revalidate && cached.exists() && System.currentTimeMillis() - fetched < TTL) {
+            return readBuildNumber(cached);
+        }
+
+        HttpURLConnection connection;
+        int code;
+        try {
+            connection = mirrors.open(path, conditional -> {
+                if (cached.exists()) {
+                    String etag = meta.getProperty("etag");
+                    String lastModified = meta.getProperty("lastModified");
+                    if (etag != null) {
+                        conditional.setRequestProperty("If-None-Match", etag);
+                    }
+                    if (lastModified != null) {
+                        conditional.setRequestProperty("If-Modified-Since", lastModified);
+                    }
+                }
+            });
+            code = connection.getResponseCode();
+        } catch (IOException e) {
+            if (cached.exists()) {
+                System.out.println("Could not reach " + mirrors.getOrigin() + ", using cached build number: " + e.getMessage());
+                return readBuildNumber(cached);
+            }
+            throw e;
+        }
+
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached.exists()) {
+            Transfers.drain(connection);
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            String body = Transfers.readString(connection.getInputStream());
+            try {
+                Integer.parseInt(body);
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected build number: " + body);
+            }
+            write(cached, body.getBytes(StandardCharsets.UTF_8));
+            meta.clear();
+            if (connection.getHeaderField("ETag") != null) {
+                meta.setProperty("etag", connection.getHeaderField("ETag"));
+            }
+            if (connection.getHeaderField("Last-Modified") != null) {
+                meta.setProperty("lastModified", connection.getHeaderField("Last-Modified"));
+            }
+        } else {
+            Transfers.drain(connection);
+            throw new HttpStatusException(code, connection.getResponseMessage());
+        }
+        meta.setProperty("fetched", String.valueOf(System.currentTimeMillis()));
+        File temp = new File(metaFile.getAbsolutePath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            meta.store(out, "Cache validators for " + path);
+        }
+        Files.move(temp.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return readBuildNumber(cached);
+    }
+
+    /**
+     * @return the {@code api/json} of a build
+     * @throws HttpStatusException if the server didn't return it
+     */
+    JsonObject getBuild(int buildNumber) throws IOException {
+        String path = buildNumber + "/api/json";
+        File cached = new File(directory, path);
+        if (cached.exists()) {
+            try {
+                return Json.parse(new String(Files.readAllBytes(cached.toPath()), StandardCharsets.UTF_8)).asObject();
+            } catch (RuntimeException e) {
+                // Corrupt, fetch it again
+                cached.delete();
+            }
+        }
+
+        HttpURLConnection connection = mirrors.open(path, null);
+        int code = connection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            Transfers.drain(connection);
+            throw new HttpStatusException(code, connection.getResponseMessage());
+        }
+        byte[] body;
+        try (InputStream in = connection.getInputStream()) {
+            body = Transfers.readBytes(in);
+        }
+        JsonObject object = Json.parse(new String(body, StandardCharsets.UTF_8)).asObject();
+        JsonValue building = object.get("building");
+        JsonValue result = object.get("result");
+        // A build which is still running will change, so only finished ones are cached
+        if ((building == null || !building.asBoolean()) && result != null && result.isString()) {
+            write(cached, body);
+        }
+        return object;
+    }
+
+    /**
+     * @return the SHA-256 the server publishes next to an artifact of a build, or null if it doesn't publish one
+     */
+    String getChecksum(int buildNumber, String artifact) throws IOException {
+        String path = buildNumber + "/artifact/target/" + artifact + ".sha256";
+        File cached = new File(directory, path);
+        if (cached.exists()) {
+            String hash = parseChecksum(new String(Files.readAllBytes(cached.toPath()), StandardCharsets.UTF_8));
+            if (hash != null) {
+                return hash;
+            }
+            cached.delete();
+        }
+
+        HttpURLConnection connection = mirrors.open(path, null);
+        int code = connection.getResponseCode();
+        if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+            Transfers.drain(connection);
+            return null;
+        }
+        if (code != HttpURLConnection.HTTP_OK) {
+            Transfers.drain(connection);
+            throw new HttpStatusException(code, connection.getResponseMessage());
+        }
+        String body = Transfers.readString(connection.getInputStream());
+        String hash = parseChecksum(body);
+        if (hash == null) {
+            throw new IOException("Malformed checksum for " + artifact + " of build " + buildNumber);
+        }
+        // Artifacts of a numbered build never change
+        write(cached, body.getBytes(StandardCharsets.UTF_8));
+        return hash;
+    }
+
+    /**
+     * Accepts both a bare hash and the {@code sha256sum} format of hash, whitespace and file name.
+     */
+    private static String parseChecksum(String body) {
+        String hash = body.trim().split("\\s+", 2)[0].toLowerCase(Locale.ROOT);
+        return hash.matches("[0-9a-f]{64}") ? hash : null;
+    }
+
+    private static int readBuildNumber(File file) throws IOException {
+        try {
+            return Integer.parseInt(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException e) {
+            file.delete();
+            throw new IOException("Corrupt cached build number", e);
+        }
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent.getAbsolutePath());
+        }
+        // Several threads may cache the same build at once, so each writes its own temp file
+        File temp = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            Files.write(temp.toPath(), data);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        HttpStatusException(int code, String message) {
+            super(code + ": " + message);
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.heliosdecompiler.bootstrapper;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves builds to other bootstrappers on the local network, laid out like the CI server so they only need to list
+ * it in {@code com.heliosdecompiler.mirrors}. Whatever isn't stored yet is fetched the first time it is asked for
+ * and verified against the published checksum, so a whole office downloads each patch and jar from the CI server
+ * once. Artifacts the CI server publishes no checksum for aren't served at all, since clients couldn't verify them
+ * either, and a stored copy which doesn't match its checksum, such as an installed jar built locally, is fetched
+ * again.
+ * <p>
+ * Artifacts are kept in a store of their own under the data directory, limited like the one of the installation.
+ * The latest build number, for jars asked for by permalink, comes from the same cache the bootstrapper uses, so it
+ * can be up to {@code com.heliosdecompiler.metadataTtl} milliseconds behind the CI server.
+ */
+final class MirrorServer {
+    private static final int THREADS = Integer.getInteger("com.heliosdecompiler.mirrorThreads", 8);
+
+    private static final Pattern ARTIFACT = Pattern.compile("(\\d+|lastStableBuild|lastSuccessfulBuild)/artifact/target/(delta\\.patch|entries\\.patch|helios-[^/]+\\.jar)");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final ArtifactStore store;
+    private final Map<String, Object> fetching = new ConcurrentHashMap<>();
+
+    private MirrorServer(ArtifactStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Starts serving on {@code address}. The server's threads keep the JVM alive until it is stopped.
+     *
+     * @param installed the installed implementation jar, which is offered without being downloaded again
+     */
+    static HttpServer start(InetSocketAddress address, File installed) throws IOException {
+        ArtifactStore store = new ArtifactStore(new File(Bootstrapper.DATA_DIR, "mirror"));
+        HeliosData data = Bootstrapper.readManifest(installed);
+        if (data != null) {
+            store.adopt(installed, data.buildNumber);
+        }
+        MirrorServer mirror = new MirrorServer(store);
+        HttpServer server = HttpServer.create(address, 0);
+        server.createContext("/", exchange -> {
+            try {
+                mirror.handle(exchange);
+            } catch (MetadataClient.HttpStatusException e) {
+                respond(exchange, e.code, e.getMessage());
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Could not serve " + exchange.getRequestURI() + ": " + e);
+                if (exchange.getResponseCode() == -1) {
+                    respond(exchange, 502, e.toString());
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(Math.max(1, THREADS), runnable -> new Thread(runnable, "Helios Mirror")));
+        server.start();
+        System.out.println("Mirroring " + Bootstrapper.MIRRORS.getOrigin() + " on " + server.getAddress());
+        return server;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            respond(exchange, 405, "Method not allowed");
+            return;
+        }
+        String path = exchange.getRequestURI().getPath().replaceFirst("^/+", "");
+
+        // Build numbers, build metadata and checksums are only ever asked of the CI server
+        Matcher matcher = ARTIFACT.matcher(path);
+        // Jars are stored by build number, so a jar of another implementation version can't be told apart from ours
+        if (!matcher.matches() || matcher.group(2).startsWith("helios-") && !matcher.group(2).equals(Bootstrapper.JAR_NAME)) {
+            respond(exchange, 404, "Not found");
+            return;
+        }
+        String artifact = matcher.group(2);
+        boolean patch = !artifact.equals(Bootstrapper.JAR_NAME);
+        int buildNumber;
+        if (!Character.isDigit(matcher.group(1).charAt(0))) {
+            if (patch) {
+                respond(exchange, 404, "Not found");
+                return;
+            }
+            buildNumber = Bootstrapper.METADATA.getLatestBuild(matcher.group(1), false);
+        } else {
+            buildNumber = Integer.parseInt(matcher.group(1));
+        }
+        String expected = Bootstrapper.METADATA.getChecksum(buildNumber, artifact);
+        if (expected == null) {
+            respond(exchange, 404, "No published checksum");
+            return;
+        }
+        String hash = stored(buildNumber, artifact, patch, expected);
+        if (hash == null) {
+            String upstream = buildNumber + "/artifact/target/" + artifact;
+            synchronized (fetching.computeIfAbsent(upstream, key -> new Object())) {
+                hash = stored(buildNumber, artifact, patch, expected);
+                if (hash == null) {
+                    hash = fetch(upstream, buildNumber, artifact, patch, expected);
+                }
+            }
+            fetching.remove(upstream);
+        }
+        if (hash == null) {
+            respond(exchange, 404, "Not found");
+        } else {
+            serve(exchange, store.object(hash), hash);
+        }
+    }
+
+    /**
+     * @return the hash of the stored artifact, or null if it isn't stored or isn't the one published
+     */
+    private String stored(int buildNumber, String artifact, boolean patch, String expected) {
+        String hash = patch ? store.getPatch(buildNumber, artifact) : store.getBuild(buildNumber);
+        return expected.equalsIgnoreCase(hash) ? hash : null;
+    }
+
+    /**
+     * @return the hash of the stored artifact, or null if upstream doesn't have it
+     */
+    private String fetch(String path, int buildNumber, String artifact, boolean patch, String expected) throws IOException {
+        HttpURLConnection connection = Bootstrapper.MIRRORS.open(path, expected, null);
+        if (connection.getResponseCode() == 404) {
+            Transfers.drain(connection);
+            return null;
+        }
+        if (connection.getResponseCode() != 200) {
+            Transfers.drain(connection);
+            throw new IOException("Upstream returned " + connection.getResponseCode() + " for " + path);
+        }
+        File temp = store.createTempFile();
+        try {
+            MessageDigest digest = ArtifactStore.sha256();
+            long size = Transfers.download(connection.getInputStream(), temp, null, digest);
+            String hash = ArtifactStore.toHex(digest.digest());
+            Transfers.verify(path, expected, hash);
+            synchronized (store) {
+                if (patch) {
+                    store.putPatch(temp, buildNumber, artifact, hash);
+                } else {
+                    store.put(temp, buildNumber, hash);
+                }
+                store.evict();
+            }
+            System.out.println("Fetched " + path + " (" + Bootstrapper.bytesToMeg(size) + "MB)");
+            return hash;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Sends a stored file, or the single byte range asked for if the client's copy is still the same file.
+     */
+    private static void serve(HttpExchange exchange, File file, String hash) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            String etag = "\"" + hash + "\"";
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", "application/octet-stream");
+            headers.set("Accept-Ranges", "bytes");
+            headers.set("ETag", etag);
+
+            long start = 0;
+            long end = length;
+            int code = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (range != null && (ifRange == null || ifRange.equals(etag))) {
+                Matcher matcher = RANGE.matcher(range);
+                if (matcher.matches() && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+                    if (matcher.group(1).isEmpty()) {
+                        start = Math.max(0, length - Long.parseLong(matcher.group(2)));
+                    } else {
+                        start = Long.parseLong(matcher.group(1));
+                        if (!matcher.group(2).isEmpty()) {
+                            end = Math.min(length, Long.parseLong(matcher.group(2)) + 1);
+                        }
+                    }
+                    if (start >= end) {
+                        headers.set("Content-Range", "bytes */" + length);
+                        respond(exchange, 416, null);
+                        return;
+                    }
+                    headers.set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + length);
+                    code = 206;
+                }
+            }
+
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                headers.set("Content-Length", String.valueOf(end - start));
+                exchange.sendResponseHeaders(code, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(code, end - start);
+            try (WritableByteChannel body = Channels.newChannel(exchange.getResponseBody())) {
+                long position = start;
+                while (position < end) {
+                    position += channel.transferTo(position, end - position, body);
+                }
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body != null ? body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (exchange.getRequestMethod().equals("HEAD") || code == 304 || bytes.length == 0) {
+            exchange.sendResponseHeaders(code, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Where artifacts are fetched from: the mirrors listed in {@code com.heliosdecompiler.mirrors}, in order, and then
+ * the CI server itself. Mirrors are laid out like the CI server, which is what a bootstrapper started with
+ * {@code --Xmirror} serves.
+ * <p>
+ * Only the patches and jars under {@code artifact/target} are fetched through mirrors, and only those the CI server
+ * publishes a checksum for, so whatever a mirror serves is verified against the CI server. Build numbers, build
+ * metadata and checksums always come from the CI server, so a mirror can't vouch for what it serves.
+ * <p>
+ * A mirror which doesn't have what was asked for, or answers with an error, is skipped. One which can't be reached
+ * is not asked again by this process, and gets {@code com.heliosdecompiler.mirrorTimeout} milliseconds to connect
+ * instead of the usual timeout, so a machine which has left the network costs at most one short wait.
+ */
+final class Mirrors {
+    private static final int MIRROR_TIMEOUT = Integer.getInteger("com.heliosdecompiler.mirrorTimeout", 1000);
+
+    private final String origin;
+    private final List<String> mirrors;
+    private final Set<String> unreachable = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    Mirrors(String origin, List<String> mirrors) {
+        this.origin = trim(origin);
+        this.mirrors = new ArrayList<>();
+        for (String mirror : mirrors) {
+            this.mirrors.add(trim(mirror));
+        }
+    }
+
+    /**
+     * @param origin the CI server
+     */
+    static Mirrors configure(String origin) {
+        List<String> mirrors = new ArrayList<>();
+        for (String mirror : System.getProperty("com.heliosdecompiler.mirrors", "").split("[,\\s]+")) {
+            if (!mirror.isEmpty()) {
+                mirrors.add(mirror);
+            }
+        }
+        return new Mirrors(origin, mirrors);
+    }
+
+    String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Sends a request for {@code path}, relative to the CI job, to the CI server. The response code of the returned
+     * connection has been read already.
+     *
+     * @param request sets up the connection before it is sent, may be null
+     */
+    HttpURLConnection open(String path, Request request) throws IOException {
+        return open(path, null, request);
+    }
+
+    /**
+     * Sends a request for {@code path}, relative to the CI job, to each mirror in turn and then to the CI server.
+     * Anything but an artifact, and any artifact without a checksum to verify it against, is only requested from the
+     * CI server. The response code of the returned connection has been read already.
+     *
+     * @param checksum the published SHA-256 of the artifact, or null if there is none
+     * @param request  sets up each connection before it is sent, may be null
+     * @return the first successful or not-modified response from a mirror, or otherwise whatever the CI server said
+     */
+    HttpURLConnection open(String path, String checksum, Request request) throws IOException {
+        HttpURLConnection connection = useMirrors(path, checksum) ? openMirror(path, request) : null;
+        if (connection != null) {
+            return connection;
+        }
+        connection = Transfers.open(new URL(origin + "/" + path));
+        if (request != null) {
+            request.prepare(connection);
+        }
+        connection.getResponseCode();
+        return connection;
+    }
+
+    /**
+     * Finds a server which has {@code path}, for downloads which make several requests for the same file.
+     *
+     * @param checksum the published SHA-256 of the artifact, or null if there is none
+     * @return the URL on the first mirror with the file, or on the CI server
+     */
+    URL locate(String path, String checksum) throws IOException {
+        HttpURLConnection connection = useMirrors(path, checksum) ? openMirror(path, head -> head.setRequestMethod("HEAD")) : null;
+        if (connection != null) {
+            Transfers.drain(connection);
+            return connection.getURL();
+        }
+        // Not worth a request, the downloader asks the CI server about the file anyway
+        return new URL(origin + "/" + path);
+    }
+
+    private HttpURLConnection openMirror(String path, Request request) throws IOException {
+        for (String mirror : mirrors) {
+            if (unreachable.contains(mirror)) {
+                continue;
+            }
+            HttpURLConnection connection = Transfers.open(new URL(mirror + "/" + path));
+            connection.setConnectTimeout(MIRROR_TIMEOUT);
+            try {
+                if (request != null) {
+                    request.prepare(connection);
+                }
+                if (connection.getResponseCode() < 400) {
+                    return connection;
+                }
+                Transfers.drain(connection);
+            } catch (IOException e) {
+                System.out.println("Mirror " + mirror + " is unreachable: " + e.getMessage());
+                unreachable.add(mirror);
+            }
+        }
+        return null;
+    }
+
+    private static boolean useMirrors(String path, String checksum) {
+        return checksum != null && path.contains("/artifact/target/") && !path.endsWith(".sha256");
+    }
+
+    private static String trim(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    interface Request {
+        void prepare(HttpURLConnection connection) throws IOException;
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import net.dongliu.vcdiff.exception.VcdiffDecodeException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches the metadata and delta patch of upcoming builds on a bounded worker pool so that the network
+ * round-trips for build N+1.. overlap with decoding build N. Results are handed out strictly in build order.
+ * Patches already in the artifact store are used from there.
+ */
+class PatchPipeline implements Closeable {
+    private static final int THREADS = Integer.getInteger("com.heliosdecompiler.prefetchThreads", 4);
+    private static final int DEPTH = Integer.getInteger("com.heliosdecompiler.prefetchDepth", 4);
+    private static final boolean ENTRIES = Boolean.parseBoolean(System.getProperty("com.heliosdecompiler.entryPatches", "true"));
+
+    static final String DELTA = "delta.patch";
+
+    private final File directory;
+    private final int lastBuild;
+    private final UpdatePlanner planner;
+    private final ExecutorService executor;
+    private final Map<Integer, Future<BuildPatch>> scheduled = new TreeMap<>();
+
+    private volatile boolean closed;
+
+    PatchPipeline(File directory, int lastBuild, UpdatePlanner planner) {
+        this.directory = directory;
+        this.lastBuild = lastBuild;
+        this.planner = planner;
+        // Prefetching for an update staged in the background must not compete with Helios, so workers run at the
+        // priority of the thread that set up the pipeline rather than that of whichever thread first submits work
+        int priority = Thread.currentThread().getPriority();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, THREADS), runnable -> {
+            Thread thread = new Thread(runnable, "Helios Patch Prefetcher");
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+        });
+    }
+
+    /**
+     * Blocks until the given build has been fetched, scheduling the next few builds in the meantime.
+     * Anything prefetched for an earlier build is discarded.
+     */
+    BuildPatch take(int buildNumber) throws IOException {
+        discardBefore(buildNumber);
+        schedule(buildNumber);
+        for (int ahead = buildNumber + 1; ahead <= Math.min(lastBuild, buildNumber + DEPTH); ahead++) {
+            schedule(ahead);
+        }
+        Future<BuildPatch> future = scheduled.remove(buildNumber);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching build " + buildNumber, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void schedule(int buildNumber) {
+        if (!scheduled.containsKey(buildNumber)) {
+            scheduled.put(buildNumber, executor.submit(() -> fetch(buildNumber)));
+        }
+    }
+
+    private void discardBefore(int buildNumber) {
+        Iterator<Map.Entry<Integer, Future<BuildPatch>>> iterator = scheduled.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Future<BuildPatch>> entry = iterator.next();
+            if (entry.getKey() >= buildNumber) {
+                break;
+            }
+            discard(entry.getValue());
+            iterator.remove();
+        }
+    }
+
+    private void discard(Future<BuildPatch> future) {
+        if (!future.cancel(true)) {
+            try {
+                future.get().delete();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ignored) {
+            }
+        }
+    }
+
+    private BuildPatch fetch(int buildNumber) throws IOException {
+        JsonObject object;
+        try {
+            object = Bootstrapper.METADATA.getBuild(buildNumber);
+        } catch (MetadataClient.HttpStatusException e) {
+            return new BuildPatch(buildNumber, Status.ERROR, e.getMessage());
+        }
+        JsonValue result = object.get("result");
+        if (result == null || !result.isString() || !result.asString().equals("SUCCESS")) {
+            return new BuildPatch(buildNumber, Status.SKIPPED, null);
+        }
+        for (JsonValue value : object.get("artifacts").asArray().values()) {
+            String name = value.asObject().get("fileName").asString();
+            if (name.startsWith("helios-") && !name.equals(Bootstrapper.JAR_NAME)) {
+                // A different implementation version may need a newer bootstrapper to launch it
+                System.out.println("Build " + buildNumber + " publishes " + name + " instead of " + Bootstrapper.JAR_NAME);
+                return new BuildPatch(buildNumber, Status.OUTDATED, name);
+            }
+        }
+        String patchName = getPatchName(object);
+        String expectedJar = Bootstrapper.METADATA.getChecksum(buildNumber, Bootstrapper.JAR_NAME);
+        File dest = new File(directory, patchName.replace(".patch", "-" + buildNumber + ".patch"));
+        ArtifactStore store = Bootstrapper.store();
+        String stored = store.getPatch(buildNumber, patchName);
+        if (stored != null) {
+            // Another install has been through this build already
+            store.checkout(stored, dest);
+            return new BuildPatch(buildNumber, patchName, dest, stored, expectedJar);
+        }
+        String expectedPatch = Bootstrapper.METADATA.getChecksum(buildNumber, patchName);
+        HttpURLConnection con = Bootstrapper.MIRRORS.open(buildNumber + "/artifact/target/" + patchName, expectedPatch, null);
+        if (con.getResponseCode() != 200) {
+            Transfers.drain(con);
+            return new BuildPatch(buildNumber, Status.SKIPPED, null);
+        }
+        MessageDigest digest = ArtifactStore.sha256();
+        try {
+            long start = System.nanoTime();
+            long size;
+            try (Timings.Phase phase = Timings.beginPatch("fetch", buildNumber)) {
+                size = Transfers.download(con.getInputStream(), dest, null, digest);
+                phase.setBytes(size);
+            }
+            planner.recordDownload(size, System.nanoTime() - start);
+        } catch (IOException e) {
+            dest.delete();
+            throw e;
+        }
+        String hash = ArtifactStore.toHex(digest.digest());
+        try {
+            Transfers.verify("the patch of build " + buildNumber, expectedPatch, hash);
+        } catch (Transfers.ChecksumException e) {
+            dest.delete();
+            return new BuildPatch(buildNumber, Status.ERROR, e.getMessage());
+        }
+        BuildPatch patch = new BuildPatch(buildNumber, patchName, dest, hash, expectedJar);
+        if (closed) {
+            patch.delete();
+        }
+        return patch;
+    }
+
+    /**
+     * Builds which publish a patch per entry are applied through that, older ones through the whole-jar delta.
+     *
+     * @param build the {@code api/json} of the build
+     * @return the name of the patch the build is applied through
+     */
+    static String getPatchName(JsonObject build) {
+        if (ENTRIES) {
+            for (JsonValue value : build.get("artifacts").asArray().values()) {
+                if (value.asObject().get("fileName").asString().equals(EntryPatch.NAME)) {
+                    return EntryPatch.NAME;
+                }
+            }
+        }
+        return DELTA;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Future<BuildPatch> future : scheduled.values()) {
+            future.cancel(true);
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Future<BuildPatch> future : scheduled.values()) {
+            if (future.isDone() && !future.isCancelled()) {
+                discard(future);
+            }
+        }
+        scheduled.clear();
+    }
+
+    enum Status {
+        /**
+         * The build has a delta patch which has been downloaded
+         */
+        PATCH,
+        /**
+         * The build failed or has no delta patch
+         */
+        SKIPPED,
+        /**
+         * The build produces an implementation this bootstrapper doesn't know about
+         */
+        OUTDATED,
+        /**
+         * The CI server returned an unexpected response for the build, or its patch failed verification
+         */
+        ERROR
+    }
+
+    static class BuildPatch {
+        final int buildNumber;
+        final Status status;
+        /**
+         * The published name of the patch, {@link #DELTA} or {@link EntryPatch#NAME}
+         */
+        final String name;
+        final File file;
+        final String message;
+        /**
+         * SHA-256 of the patch file
+         */
+        final String hash;
+        /**
+         * Published SHA-256 of the jar the patch produces, or null if the server doesn't publish one
+         */
+        final String expectedHash;
+
+        BuildPatch(int buildNumber, Status status, String message) {
+            this.buildNumber = buildNumber;
+            this.status = status;
+            this.name = null;
+            this.file = null;
+            this.message = message;
+            this.hash = null;
+            this.expectedHash = null;
+        }
+
+        BuildPatch(int buildNumber, String name, File file, String hash, String expectedHash) {
+            this.buildNumber = buildNumber;
+            this.status = Status.PATCH;
+            this.name = name;
+            this.file = file;
+            this.message = null;
+            this.hash = hash;
+            this.expectedHash = expectedHash;
+        }
+
+        /**
+         * Builds the jar this patch produces from the jar of the build before it.
+         *
+         * @return the SHA-256 of {@code target}
+         */
+        String apply(File source, String sourceHash, File target) throws IOException, VcdiffDecodeException {
+            if (name.equals(EntryPatch.NAME)) {
+                return EntryPatch.apply(source, sourceHash, file, target);
+            }
+            return Transfers.decode(source, file, target);
+        }
+
+        void delete() {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+}
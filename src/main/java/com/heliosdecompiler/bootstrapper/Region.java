@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Random read access to a run of bytes: a heap buffer, or a file.
+ * <p>
+ * Files are memory-mapped, except on Windows. There a file can't be deleted or replaced while it is mapped, and a
+ * mapping is only released once its buffer is garbage collected, so a patch would outlive its delete and the
+ * installed jar couldn't be swapped for the next build. Ranges are read with positional reads there instead, through
+ * a single cached block, so no more of the file is on the heap than the ranges the caller is using.
+ */
+abstract class Region implements Closeable {
+    private static final int BLOCK = 64 * 1024;
+
+    /**
+     * Opens a whole file. The file stays open until the region is closed, unless it has been mapped.
+     */
+    static Region open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (!Transfers.WINDOWS) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException(file.getName() + " is too large to map");
+                }
+                // The mapping stays valid once the channel is closed
+                return of(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+            return new Positional(channel, channel.size());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return a region over the remaining bytes of {@code buffer}
+     */
+    static Region of(ByteBuffer buffer) {
+        return new Buffered(buffer.slice());
+    }
+
+    abstract long length();
+
+    /**
+     * @return {@code length} bytes from {@code position}, in a buffer of their own which stays valid after further
+     * reads
+     * @throws BufferUnderflowException if the range is out of bounds
+     */
+    abstract ByteBuffer read(long position, int length) throws IOException;
+
+    /**
+     * @return a view of {@code length} bytes from {@code position}, valid for as long as this region is
+     */
+    Region slice(long position, long length) {
+        if (length > Integer.MAX_VALUE) {
+            throw new BufferUnderflowException();
+        }
+        checkBounds(position, (int) length, length());
+        return new Slice(this, position, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    static void checkBounds(long position, int length, long size) {
+        if (position < 0 || length < 0 || position + length > size) {
+            throw new BufferUnderflowException();
+        }
+    }
+
+    private static final class Buffered extends Region {
+        private final ByteBuffer buffer;
+
+        Buffered(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        long length() {
+            return buffer.limit();
+        }
+
+        @Override
+        ByteBuffer read(long position, int length) {
+            checkBounds(position, length, buffer.limit());
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit((int) position + length);
+            slice.position((int) position);
+            return slice.slice();
+        }
+    }
+
+    private static final class Slice extends Region {
+        private final Region region;
+        private final long start;
+        private final long length;
+
+        Slice(Region region, long start, long length) {
+            this.region = region;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        long length() {
+            return length;
+        }
+
+        @Override
+        ByteBuffer read(long position, int length) throws IOException {
+            checkBounds(position, length, this.length);
+            return region.read(start + position, length);
+        }
+    }
+
+    private static final class Positional extends Region {
+        private final FileChannel channel;
+        private final long size;
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK);
+        private long blockStart = -1;
+
+        Positional(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        @Override
+        long length() {
+            return size;
+        }
+
+        @Override
+        synchronized ByteBuffer read(long position, int length) throws IOException {
+            checkBounds(position, length, size);
+            ByteBuffer result = ByteBuffer.allocate(length);
+            if (length >= BLOCK) {
+                readFully(result, position);
+                result.flip();
+                return result;
+            }
+            // Small reads, such as the copies of a patch, tend to be close to each other
+            while (result.hasRemaining()) {
+                long at = position + result.position();
+                if (blockStart == -1 || at < blockStart || at >= blockStart + block.limit()) {
+                    blockStart = at - at % BLOCK;
+                    block.clear();
+                    block.limit((int) Math.min(BLOCK, size - blockStart));
+                    readFully(block, blockStart);
+                    block.flip();
+                }
+                ByteBuffer view = block.duplicate();
+                view.position((int) (at - blockStart));
+                view.limit(view.position() + Math.min(view.remaining(), result.remaining()));
+                result.put(view);
+            }
+            result.flip();
+            return result;
+        }
+
+        /**
+         * Fills {@code buffer}, which starts out empty, from {@code position}
+         */
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) == -1) {
+                    throw new EOFException("Unexpected end of file");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
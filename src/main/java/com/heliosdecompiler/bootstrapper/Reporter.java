@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.util.Locale;
+
+/**
+ * Where the bootstrapper tells the user what it is doing. With a display that is Swing dialogs and a progress
+ * window, and without one it is the console, so machines without a display never load AWT.
+ * <p>
+ * {@code com.heliosdecompiler.headless} forces either mode. Otherwise the bootstrapper runs headless if
+ * {@code java.awt.headless} is set, or on X11 and Wayland systems with no display to connect to.
+ */
+interface Reporter {
+    /**
+     * Shows an informational message.
+     */
+    void info(String message);
+
+    /**
+     * Shows an error the user has to know about.
+     *
+     * @param title may be null
+     */
+    void error(String title, String message);
+
+    /**
+     * Reports a failure along with its stack trace.
+     */
+    void exception(Throwable throwable);
+
+    /**
+     * Asks a yes or no question. A reporter which can't ask anyone answers no.
+     */
+    boolean confirm(String question);
+
+    /**
+     * Shows the progress of a transfer of {@code total} bytes, until the returned progress is closed.
+     */
+    Progress progress(String title, long total);
+
+    interface Progress extends AutoCloseable {
+        /**
+         * Called with the number of bytes transferred since the last call. May be called from any thread.
+         */
+        void advance(long bytes);
+
+        @Override
+        void close();
+    }
+
+    static Reporter get() {
+        return Holder.INSTANCE;
+    }
+
+    static boolean isHeadless() {
+        String forced = System.getProperty("com.heliosdecompiler.headless");
+        if (forced != null) {
+            return Boolean.parseBoolean(forced);
+        }
+        if (Boolean.getBoolean("java.awt.headless")) {
+            return true;
+        }
+        String os = System.getProperty("os.name", "").toLowerCase(Locale.ROOT);
+        if (os.contains("win") || os.contains("mac")) {
+            return false;
+        }
+        return System.getenv("DISPLAY") == null && System.getenv("WAYLAND_DISPLAY") == null;
+    }
+
+    final class Holder {
+        // Only the chosen implementation is ever loaded, so a headless JVM never touches Swing
+        static final Reporter INSTANCE = create();
+
+        private Holder() {
+        }
+
+        private static Reporter create() {
+            if (isHeadless()) {
+                if (System.getProperty("java.awt.headless") == null) {
+                    // Anything which does reach for AWT fails fast instead of looking for a display
+                    System.setProperty("java.awt.headless", "true");
+                }
+                return new ConsoleReporter("json".equalsIgnoreCase(System.getProperty("com.heliosdecompiler.logFormat")));
+            }
+            return new SwingReporter();
+        }
+    }
+}
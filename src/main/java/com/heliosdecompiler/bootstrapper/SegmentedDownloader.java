@@ -0,0 +1,412 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * Downloads a file as several HTTP range requests in parallel. Progress is recorded in a journal next to the
+ * partial file so an interrupted download picks up where it stopped, and the finished file is moved into place
+ * atomically so a truncated file is never left at the destination.
+ * <p>
+ * SHA-256 can't be computed per segment and combined, so the file is hashed in order while it downloads, as far as
+ * every segment before has been written. Each chunk is read back from the page cache shortly after it was written,
+ * and only whatever the first segments haven't caught up with is left to hash once the download is done.
+ */
+class SegmentedDownloader {
+    private static final int SEGMENTS = Integer.getInteger("com.heliosdecompiler.downloadSegments", 4);
+    private static final long MIN_SEGMENT = 256 * 1024;
+    private static final long CHUNK = 64 * 1024;
+    private static final int RETRIES = 3;
+    private static final long JOURNAL_INTERVAL = 1000;
+
+    private static final int JOURNAL_MAGIC = 0x484A4E4C;
+    private static final int JOURNAL_VERSION = 1;
+
+    private final URL url;
+    private final File dest;
+    private final File part;
+    private final File journal;
+
+    private int responseCode;
+    private String responseMessage;
+    private long length = -1;
+    private boolean acceptsRanges;
+    private String validator = "";
+    private String expectedHash;
+    private String hash;
+
+    private long[] starts;
+    private long[] ends;
+    private AtomicLongArray done;
+    private long lastJournal;
+
+    private final ReentrantLock hashing = new ReentrantLock();
+    private final ByteBuffer hashBuffer = ByteBuffer.allocate((int) CHUNK);
+    private MessageDigest digest;
+    private long hashed;
+
+    SegmentedDownloader(URL url, File dest) {
+        this.url = url;
+        this.dest = dest;
+        this.part = new File(dest.getAbsolutePath() + ".part");
+        this.journal = new File(dest.getAbsolutePath() + ".part.journal");
+    }
+
+    /**
+     * Asks the server about the file without downloading it.
+     *
+     * @return the HTTP response code
+     */
+    int probe() throws IOException {
+        HttpURLConnection connection = Transfers.open(url);
+        connection.setRequestMethod("HEAD");
+        try {
+            responseCode = connection.getResponseCode();
+            responseMessage = connection.getResponseMessage();
+            length = connection.getContentLengthLong();
+            acceptsRanges = "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+            String etag = connection.getHeaderField("ETag");
+            String lastModified = connection.getHeaderField("Last-Modified");
+            validator = etag != null ? etag : lastModified != null ? lastModified : "";
+        } finally {
+            Transfers.drain(connection);
+        }
+        return responseCode;
+    }
+
+    String getResponseMessage() {
+        return responseMessage;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * @param expectedHash the SHA-256 the finished file must have, or null to accept anything
+     */
+    void setExpectedHash(String expectedHash) {
+        this.expectedHash = expectedHash;
+    }
+
+    /**
+     * @return the SHA-256 of the downloaded file
+     */
+    String getHash() {
+        return hash;
+    }
+
+    /**
+     * Downloads the file to its destination, resuming a previous attempt if the server still has the same file.
+     *
+     * @param progress notified with the number of bytes written, including those from a previous attempt, may be null
+     */
+    void download(LongConsumer progress) throws IOException {
+        if (responseCode == 0) {
+            probe();
+        }
+        if (responseCode != 200) {
+            throw new IOException(responseCode + ": " + responseMessage);
+        }
+        if (!acceptsRanges || length <= 0) {
+            downloadSingle(progress);
+            return;
+        }
+        if (!resume()) {
+            int count = (int) Math.max(1, Math.min(SEGMENTS, length / MIN_SEGMENT));
+            starts = new long[count];
+            ends = new long[count];
+            done = new AtomicLongArray(count);
+            long segmentLength = length / count;
+            for (int i = 0; i < count; i++) {
+                starts[i] = i * segmentLength;
+                ends[i] = i == count - 1 ? length : (i + 1) * segmentLength;
+            }
+            part.delete();
+            saveJournal();
+        } else if (progress != null) {
+            long resumed = 0;
+            for (int i = 0; i < done.length(); i++) {
+                resumed += done.get(i);
+            }
+            System.out.println("Resuming download from " + Bootstrapper.bytesToMeg(resumed) + "MB");
+            progress.accept(resumed);
+        }
+
+        digest = ArtifactStore.sha256();
+        hashed = 0;
+        // A download for the background updater stays at its low priority
+        int priority = Thread.currentThread().getPriority();
+        ExecutorService executor = Executors.newFixedThreadPool(starts.length, runnable -> {
+            Thread thread = new Thread(runnable, "Helios Downloader");
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+        });
+        try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+            // Segments are written out of order, and FileChannel won't write past the end of a file
+            file.setLength(length);
+            FileChannel channel = file.getChannel();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < starts.length; i++) {
+                int segment = i;
+                futures.add(executor.submit(() -> {
+                    fetchSegment(channel, segment, progress);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            channel.force(false);
+            hashWritten(channel, true);
+            hash = ArtifactStore.toHex(digest.digest());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + url, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RangeException) {
+                System.out.println("Could not resume download: " + e.getCause().getMessage());
+                long discarded = 0;
+                for (int i = 0; i < done.length(); i++) {
+                    discarded += done.get(i);
+                }
+                if (progress != null) {
+                    progress.accept(-discarded);
+                }
+                journal.delete();
+                part.delete();
+                downloadSingle(progress);
+                return;
+            }
+            saveJournal();
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verify();
+        Files.move(part.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal.delete();
+    }
+
+    private void fetchSegment(FileChannel channel, int segment, LongConsumer progress) throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < RETRIES; attempt++) {
+            long position = starts[segment] + done.get(segment);
+            if (position >= ends[segment]) {
+                return;
+            }
+            HttpURLConnection connection = Transfers.open(url);
+            connection.setRequestProperty("Range", "bytes=" + position + "-" + (ends[segment] - 1));
+            if (!validator.isEmpty()) {
+                connection.setRequestProperty("If-Range", validator);
+            }
+            try {
+                if (connection.getResponseCode() != 206) {
+                    // The file changed or the server stopped honouring ranges, so the parts we have are useless
+                    throw new RangeException("Server returned " + connection.getResponseCode() + " for a range request");
+                }
+                try (ReadableByteChannel source = Channels.newChannel(connection.getInputStream())) {
+                    long amnt;
+                    while (position < ends[segment] && (amnt = channel.transferFrom(source, position, Math.min(CHUNK, ends[segment] - position))) > 0) {
+                        position += amnt;
+                        done.addAndGet(segment, amnt);
+                        if (progress != null) {
+                            progress.accept(amnt);
+                        }
+                        maybeSaveJournal(channel);
+                        hashWritten(channel, false);
+                    }
+                }
+                if (position < ends[segment]) {
+                    throw new IOException("Connection closed early");
+                }
+                return;
+            } catch (RangeException e) {
+                throw e;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Hashes the file up to where the first unfinished segment has got to. Whichever segment thread gets here first
+     * does the hashing while the others carry on downloading.
+     *
+     * @param finish wait for the thread hashing, and hash whatever is left, however little
+     */
+    private void hashWritten(FileChannel channel, boolean finish) throws IOException {
+        if (finish) {
+            hashing.lock();
+        } else if (!hashing.tryLock()) {
+            return;
+        }
+        try {
+            long end;
+            while ((end = writtenEnd()) - hashed >= (finish ? 1 : CHUNK)) {
+                hashBuffer.clear();
+                hashBuffer.limit((int) Math.min(CHUNK, end - hashed));
+                while (hashBuffer.hasRemaining()) {
+                    if (channel.read(hashBuffer, hashed + hashBuffer.position()) == -1) {
+                        throw new EOFException("Unexpected end of " + part.getName());
+                    }
+                }
+                hashBuffer.flip();
+                digest.update(hashBuffer);
+                hashed += hashBuffer.limit();
+            }
+        } finally {
+            hashing.unlock();
+        }
+    }
+
+    /**
+     * @return the end of the part of the file which has been written without gaps
+     */
+    private long writtenEnd() {
+        for (int i = 0; i < starts.length; i++) {
+            long end = starts[i] + done.get(i);
+            if (end < ends[i]) {
+                return end;
+            }
+        }
+        return length;
+    }
+
+    private void downloadSingle(LongConsumer progress) throws IOException {
+        HttpURLConnection connection = Transfers.open(url);
+        if (connection.getResponseCode() != 200) {
+            throw new IOException(connection.getResponseCode() + ": " + connection.getResponseMessage());
+        }
+        MessageDigest digest = ArtifactStore.sha256();
+        Transfers.download(connection.getInputStream(), part, progress, digest);
+        if (length > 0 && part.length() != length) {
+            throw new IOException("Downloaded " + part.length() + " bytes but expected " + length);
+        }
+        hash = ArtifactStore.toHex(digest.digest());
+        verify();
+        Files.move(part.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal.delete();
+    }
+
+    private void verify() throws IOException {
+        try {
+            Transfers.verify(url.toString(), expectedHash, hash);
+        } catch (Transfers.ChecksumException e) {
+            // Resuming would only reproduce the same file
+            part.delete();
+            journal.delete();
+            throw e;
+        }
+    }
+
+    private boolean resume() {
+        if (!journal.exists() || !part.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(journal))) {
+            if (in.readInt() != JOURNAL_MAGIC || in.readInt() != JOURNAL_VERSION) {
+                return false;
+            }
+            if (in.readLong() != length || !in.readUTF().equals(validator) || validator.isEmpty()) {
+                return false;
+            }
+            int count = in.readInt();
+            starts = new long[count];
+            ends = new long[count];
+            done = new AtomicLongArray(count);
+            for (int i = 0; i < count; i++) {
+                starts[i] = in.readLong();
+                ends[i] = in.readLong();
+                done.set(i, in.readLong());
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void maybeSaveJournal(FileChannel channel) throws IOException {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - lastJournal < JOURNAL_INTERVAL) {
+                return;
+            }
+            lastJournal = now;
+            // Make sure the journal never claims more than what is actually on disk
+            channel.force(false);
+            saveJournal();
+        }
+    }
+
+    private synchronized void saveJournal() throws IOException {
+        File temp = new File(journal.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeInt(JOURNAL_VERSION);
+            out.writeLong(length);
+            out.writeUTF(validator);
+            out.writeInt(starts.length);
+            for (int i = 0; i < starts.length; i++) {
+                out.writeLong(starts[i]);
+                out.writeLong(ends[i]);
+                out.writeLong(done.get(i));
+            }
+        }
+        Files.move(temp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static class RangeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RangeException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import javax.swing.BorderFactory;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
+import java.awt.GridLayout;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports through Swing dialogs and a progress window.
+ */
+class SwingReporter implements Reporter {
+    @Override
+    public void info(String message) {
+        JOptionPane.showMessageDialog(null, message);
+    }
+
+    @Override
+    public void error(String title, String message) {
+        if (title == null) {
+            JOptionPane.showMessageDialog(null, message);
+        } else {
+            JOptionPane.showMessageDialog(null, message, title, JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+
+    @Override
+    public void exception(Throwable throwable) {
+        throwable.printStackTrace();
+        StringWriter writer = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(writer));
+        error(throwable.getClass().getSimpleName(), writer.toString());
+    }
+
+    @Override
+    public boolean confirm(String question) {
+        return JOptionPane.showConfirmDialog(null, question, null, JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION;
+    }
+
+    @Override
+    public Progress progress(String title, long total) {
+        return new ProgressWindow(title, total);
+    }
+
+    /**
+     * Updates are pushed to the event dispatch thread as bytes arrive, but at most one is queued at a time, so a
+     * fast download doesn't flood the event queue and a stalled one costs nothing.
+     */
+    private static class ProgressWindow implements Progress {
+        private final long total;
+        private final AtomicLong done = new AtomicLong();
+        private final AtomicBoolean updateQueued = new AtomicBoolean();
+        private JFrame frame;
+        private JProgressBar bar;
+        private JTextArea text;
+        private boolean closed;
+
+        ProgressWindow(String title, long total) {
+            this.total = total;
+            SwingUtilities.invokeLater(() -> show(title));
+        }
+
+        private void show(String title) {
+            if (closed) {
+                return;
+            }
+            JPanel panel = new JPanel();
+            panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+
+            JLabel label = new JLabel();
+            label.setText(title);
+            panel.add(label);
+
+            GridLayout layout = new GridLayout();
+            layout.setColumns(1);
+            layout.setRows(3);
+            panel.setLayout(layout);
+            bar = new JProgressBar();
+            bar.setMinimum(0);
+            bar.setMaximum(100);
+            panel.add(bar);
+
+            text = new JTextArea(1, 3);
+            text.setOpaque(false);
+            text.setEditable(false);
+            panel.add(text);
+            update();
+
+            frame = new JFrame();
+            frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+            frame.setContentPane(panel);
+            frame.pack();
+            frame.setLocationRelativeTo(null);
+            frame.setVisible(true);
+        }
+
+        @Override
+        public void advance(long bytes) {
+            done.addAndGet(bytes);
+            if (updateQueued.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(() -> {
+                    updateQueued.set(false);
+                    if (bar != null) {
+                        update();
+                    }
+                });
+            }
+        }
+
+        private void update() {
+            long current = done.get();
+            bar.setValue(total > 0 ? (int) (100.0 * current / total) : 0);
+            text.setText("Downloaded " + Bootstrapper.bytesToMeg(current) + "MB/" + Bootstrapper.bytesToMeg(total) + "MB");
+        }
+
+        @Override
+        public void close() {
+            SwingUtilities.invokeLater(() -> {
+                closed = true;
+                if (frame != null) {
+                    frame.dispose();
+                }
+            });
+        }
+    }
+}
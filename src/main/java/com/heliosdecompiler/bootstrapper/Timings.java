@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Records how long each step of a launch or an update takes, so a slow start can be pinned on one of them.
+ * <p>
+ * While a flight recording is running every step is also emitted as a JFR event, and setting
+ * {@code com.heliosdecompiler.timingReport} to true writes all of them to a JSON file in the data directory
+ * when the bootstrapper hands over to Helios or exits. {@code com.heliosdecompiler.jfr} can be set to false to
+ * never touch JFR.
+ */
+final class Timings {
+    private static final boolean REPORT = Boolean.getBoolean("com.heliosdecompiler.timingReport");
+    private static final boolean JFR = Boolean.parseBoolean(System.getProperty("com.heliosdecompiler.jfr", "true")) && isJfrAvailable();
+    private static final int MAX_PHASES = 4096;
+    private static final int MAX_REPORTS = 10;
+
+    // Lets nanoTime readings be reported as wall clock times, which can be lined up with other processes
+    private static final long ORIGIN_MILLIS = System.currentTimeMillis();
+    private static final long ORIGIN_NANOS = System.nanoTime();
+
+    private static final List<Phase> PHASES = new ArrayList<>();
+    private static boolean reported;
+
+    private Timings() {
+    }
+
+    static Phase begin(String name) {
+        return new Phase(name, false, -1);
+    }
+
+    /**
+     * @return whether a timing report will be written
+     */
+    static boolean isReporting() {
+        return REPORT;
+    }
+
+    /**
+     * Starts timing one step of getting a single build, such as fetching or decoding its patch.
+     */
+    static Phase beginPatch(String step, int buildNumber) {
+        return new Phase(step, true, buildNumber);
+    }
+
+    /**
+     * Writes the timing report, if one was asked for. Only the first call of a process does anything.
+     *
+     * @param outcome how the bootstrapper finished, such as "launched" or "updated"
+     */
+    static void report(File dataDirectory, String outcome) {
+        List<Phase> phases;
+        synchronized (PHASES) {
+            if (!REPORT || reported) {
+                return;
+            }
+            reported = true;
+            phases = new ArrayList<>(PHASES);
+        }
+        // Phases are recorded as they end, so nested ones come before the phase around them
+        phases.sort(Comparator.comparingLong(phase -> phase.start));
+
+        JsonArray array = new JsonArray();
+        for (Phase phase : phases) {
+            JsonObject object = new JsonObject()
+                    .add("name", phase.name)
+                    .add("type", phase.patch ? "patch" : "phase")
+                    .add("thread", phase.thread)
+                    .add("start", toMillis(phase.start))
+                    .add("millis", phase.duration / 1e6);
+            if (phase.buildNumber != -1) {
+                object.add("buildNumber", phase.buildNumber);
+            }
+            if (phase.bytes != -1) {
+                object.add("bytes", phase.bytes);
+            }
+            array.add(object);
+        }
+        long now = System.currentTimeMillis();
+        JsonObject report = new JsonObject()
+                .add("outcome", outcome)
+                .add("bootstrapperVersion", Bootstrapper.IMPLEMENTATION_VERSION)
+                .add("javaVersion", System.getProperty("java.version"))
+                .add("javaVendor", System.getProperty("java.vendor"))
+                .add("os", System.getProperty("os.name") + " " + System.getProperty("os.version") + " " + System.getProperty("os.arch"))
+                .add("classDataSharingChild", ClassDataSharing.isChild())
+                .add("jvmStart", ManagementFactory.getRuntimeMXBean().getStartTime())
+                .add("reported", now)
+                .add("phases", array);
+
+        File directory = new File(dataDirectory, "timings");
+        if (!directory.exists() && !directory.mkdirs()) {
+            System.out.println("Could not create " + directory.getAbsolutePath());
+            return;
+        }
+        File file = new File(directory, now + "-" + outcome + ".json");
+        File temp = new File(directory, file.getName() + ".tmp");
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+                report.writeTo(writer);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            temp.delete();
+            System.out.println("Could not write timing report: " + e.getMessage());
+            return;
+        }
+
+        File[] reports = directory.listFiles((dir, name) -> name.endsWith(".json"));
+        if (reports != null && reports.length > MAX_REPORTS) {
+            // Names start with the time they were written, so they sort oldest first
+            Arrays.sort(reports);
+            for (int i = 0; i < reports.length - MAX_REPORTS; i++) {
+                reports[i].delete();
+            }
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return ORIGIN_MILLIS + (nanos - ORIGIN_NANOS) / 1e6;
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.EventFactory", false, null);
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    static final class Phase implements AutoCloseable {
+        private final String name;
+        private final boolean patch;
+        private final String thread = Thread.currentThread().getName();
+        private final Object event;
+        private final long start;
+        private long duration = -1;
+        private int buildNumber;
+        private long bytes = -1;
+
+        private Phase(String name, boolean patch, int buildNumber) {
+            this.name = name;
+            this.patch = patch;
+            this.buildNumber = buildNumber;
+            this.event = JFR && JfrEvents.isRecording() ? JfrEvents.begin(patch) : null;
+            this.start = System.nanoTime();
+        }
+
+        void setBuildNumber(int buildNumber) {
+            this.buildNumber = buildNumber;
+        }
+
+        void setBytes(long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Ends the phase. Closing it again does nothing.
+         */
+        @Override
+        public void close() {
+            if (duration != -1) {
+                return;
+            }
+            duration = System.nanoTime() - start;
+            if (event != null) {
+                JfrEvents.commit(event, name, buildNumber, bytes);
+            }
+            if (REPORT) {
+                synchronized (PHASES) {
+                    if (PHASES.size() < MAX_PHASES) {
+                        PHASES.add(this);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import net.dongliu.vcdiff.exception.VcdiffDecodeException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.function.LongConsumer;
+
+/**
+ * Streaming file transfers. Nothing in here buffers a whole artifact on the heap.
+ */
+final class Transfers {
+    private static final long CHUNK = 64 * 1024;
+    private static final int MAX_STRING = 64 * 1024;
+    private static final int MAX_BYTES = 4 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT = Integer.getInteger("com.heliosdecompiler.connectTimeout", 5000);
+    private static final int READ_TIMEOUT = Integer.getInteger("com.heliosdecompiler.readTimeout", 15000);
+
+    static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+    private Transfers() {
+    }
+
+    /**
+     * Streams {@code in} straight into {@code dest}, replacing it, and closes {@code in}.
+     *
+     * @param progress notified with the number of bytes written after each chunk, may be null
+     * @return the number of bytes written
+     */
+    static long download(InputStream in, File dest, LongConsumer progress) throws IOException {
+        return download(in, dest, progress, null);
+    }
+
+    /**
+     * Like {@link #download(InputStream, File, LongConsumer)}, but also feeds every byte to {@code digest} as it
+     * passes through, so the file never has to be read back to be verified.
+     */
+    static long download(InputStream in, File dest, LongConsumer progress, MessageDigest digest) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(in);
+        try (ReadableByteChannel source = digest != null ? new DigestingChannel(channel, digest) : channel;
+             FileChannel target = FileChannel.open(dest.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long amnt;
+            while ((amnt = target.transferFrom(source, position, CHUNK)) > 0) {
+                position += amnt;
+                if (progress != null) {
+                    progress.accept(amnt);
+                }
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Opens a connection with the configured timeouts, so a slow server fails the request instead of hanging it.
+     */
+    static HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        return connection;
+    }
+
+    /**
+     * Reads and discards whatever body a response has, which lets the connection go back to the keep-alive pool.
+     */
+    static void drain(HttpURLConnection connection) {
+        try (InputStream in = connection.getResponseCode() >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+            if (in != null) {
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) != -1) {
+                }
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Reads a small UTF-8 response body, such as a build number, and closes {@code in}.
+     */
+    static String readString(InputStream in) throws IOException {
+        byte[] bytes = readBytes(in, MAX_STRING);
+        return new String(bytes, StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Reads a response body of at most a few megabytes, such as build metadata, and closes {@code in}.
+     */
+    static byte[] readBytes(InputStream in) throws IOException {
+        return readBytes(in, MAX_BYTES);
+    }
+
+    private static byte[] readBytes(InputStream in, int max) throws IOException {
+        try (InputStream input = in) {
+            byte[] buffer = new byte[256];
+            int length = 0;
+            int amnt;
+            while ((amnt = input.read(buffer, length, buffer.length - length)) != -1) {
+                length += amnt;
+                if (length == buffer.length) {
+                    if (length >= max) {
+                        throw new IOException("Response exceeded " + max + " bytes");
+                    }
+                    byte[] expanded = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, expanded, 0, length);
+                    buffer = expanded;
+                }
+            }
+            byte[] result = new byte[length];
+            System.arraycopy(buffer, 0, result, 0, length);
+            return result;
+        }
+    }
+
+    /**
+     * Applies a VCDIFF patch. The source and the patch are read as {@link Region regions} and the target is written
+     * through a bounded write-behind buffer, so heap usage does not depend on the size of any of the files.
+     *
+     * @return the SHA-256 of the target, computed as it was written
+     */
+    static String decode(File source, File patch, File target) throws IOException, VcdiffDecodeException {
+        MessageDigest digest = ArtifactStore.sha256();
+        try (Region sourceData = Region.open(source);
+             Region patchData = Region.open(patch);
+             FileChannelStream targetStream = new FileChannelStream(FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), digest)) {
+            new VcdiffPatcher(sourceData, patchData, targetStream).decode();
+        }
+        return ArtifactStore.toHex(digest.digest());
+    }
+
+    /**
+     * @param expected the published SHA-256, or null if the server doesn't publish one
+     * @throws ChecksumException if the hashes differ
+     */
+    static void verify(String name, String expected, String actual) throws ChecksumException {
+        if (expected != null && !expected.equalsIgnoreCase(actual)) {
+            throw new ChecksumException(String.format("Checksum mismatch for %s (expected %s, got %s)", name, expected, actual));
+        }
+    }
+
+    static class ChecksumException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ChecksumException(String message) {
+            super(message);
+        }
+    }
+
+    private static class DigestingChannel implements ReadableByteChannel {
+        private final ReadableByteChannel delegate;
+        private final MessageDigest digest;
+
+        DigestingChannel(ReadableByteChannel delegate, MessageDigest digest) {
+            this.delegate = delegate;
+            this.digest = digest;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int start = dst.position();
+            int amnt = delegate.read(dst);
+            if (amnt > 0) {
+                ByteBuffer read = dst.duplicate();
+                read.limit(start + amnt);
+                read.position(start);
+                digest.update(read);
+            }
+            return amnt;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return delegate.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decides how to get from the current build to the latest one: by applying every delta patch, by downloading
+ * the full implementation jar of the latest build, or by downloading the jar of some intermediate build and
+ * patching from there. Patch and jar sizes come from HEAD requests, and download and decode speeds are measured
+ * on every update and remembered between runs.
+ */
+class UpdatePlanner {
+    private static final int THREADS = Integer.getInteger("com.heliosdecompiler.prefetchThreads", 4);
+
+    private static final double DEFAULT_DOWNLOAD_RATE = 1024 * 1024;
+    private static final double DEFAULT_DECODE_RATE = 32 * 1024 * 1024;
+    private static final double DEFAULT_LATENCY = 0.2;
+
+    private final File statsFile;
+
+    private double downloadRate = DEFAULT_DOWNLOAD_RATE;
+    private double decodeRate = DEFAULT_DECODE_RATE;
+    private double latency = DEFAULT_LATENCY;
+
+    private long downloadedBytes;
+    private long downloadNanos;
+    private long decodedBytes;
+    private long decodeNanos;
+
+    UpdatePlanner(File statsFile) {
+        this.statsFile = statsFile;
+        if (statsFile.exists()) {
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(statsFile)) {
+                properties.load(in);
+                downloadRate = Double.parseDouble(properties.getProperty("downloadRate", String.valueOf(DEFAULT_DOWNLOAD_RATE)));
+                decodeRate = Double.parseDouble(properties.getProperty("decodeRate", String.valueOf(DEFAULT_DECODE_RATE)));
+                latency = Double.parseDouble(properties.getProperty("latency", String.valueOf(DEFAULT_LATENCY)));
+            } catch (IOException | NumberFormatException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Probes the sizes of everything between {@code current} and {@code latest} and picks the cheapest plan. If the
+     * sizes can't be probed the plan is to apply every patch, which is what the bootstrapper did before planning.
+     */
+    Plan plan(int current, int latest) throws IOException {
+        if (latest - current <= 1) {
+            return new Plan(-1, 0, latest - current, 0, 0);
+        }
+
+        int priority = Thread.currentThread().getPriority();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, THREADS), runnable -> {
+            Thread thread = new Thread(runnable, "Helios Update Planner");
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+        });
+        long[] patchSizes = new long[latest - current];
+        long jarSize;
+        long probeStart = System.nanoTime();
+        try {
+            List<Future<Long>> patches = new ArrayList<>();
+            for (int build = current + 1; build <= latest; build++) {
+                int patchBuild = build;
+                patches.add(executor.submit(() -> patchLength(patchBuild)));
+            }
+            Future<Long> jar = executor.submit(() -> contentLength(latest, Bootstrapper.JAR_NAME));
+            for (int i = 0; i < patchSizes.length; i++) {
+                patchSizes[i] = patches.get(i).get();
+            }
+            jarSize = jar.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while planning update", e);
+        } catch (ExecutionException e) {
+            System.out.println("Could not probe update sizes, applying every patch: " + e.getCause());
+            return new Plan(-1, 0, latest - current, 0, 0);
+        } finally {
+            executor.shutdownNow();
+        }
+        int requests = patchSizes.length + 1;
+        double measuredLatency = (System.nanoTime() - probeStart) / 1e9 / Math.ceil(requests / (double) Math.max(1, THREADS));
+        latency = (latency + measuredLatency) / 2;
+
+        if (jarSize <= 0) {
+            // Without a full jar to compare against the patch chain is the only option
+            long total = 0;
+            int count = 0;
+            for (long size : patchSizes) {
+                if (size > 0) {
+                    total += size;
+                    count++;
+                }
+            }
+            return new Plan(-1, 0, count, total, 0);
+        }
+
+        Plan best = null;
+        for (int start = -1; start < patchSizes.length; start++) {
+            // start == -1 means patching from the current build, otherwise download the jar of build current + 1 + start
+            if (start >= 0 && patchSizes[start] == 0) {
+                continue;
+            }
+            double network = start >= 0 ? latency + jarSize / downloadRate : 0;
+            double decode = 0;
+            long patchBytes = 0;
+            int count = 0;
+            for (int i = start + 1; i < patchSizes.length; i++) {
+                network += latency * 2 / Math.max(1, THREADS);
+                if (patchSizes[i] != 0) {
+                    long size = patchSizes[i] > 0 ? patchSizes[i] : jarSize;
+                    network += size / downloadRate;
+                    decode += jarSize / decodeRate;
+                    patchBytes += size;
+                    count++;
+                }
+            }
+            // Downloads are pipelined with decoding, so whichever is slower dominates
+            long estimate = (long) (Math.max(network, decode) * 1000);
+            int fullBuild = start >= 0 ? current + 1 + start : -1;
+            if (best == null || estimate < best.estimatedMillis) {
+                best = new Plan(fullBuild, fullBuild != -1 ? jarSize : 0, count, patchBytes, estimate);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return where to download the implementation jar of a build from, preferring a mirror which has it
+     */
+    URL artifactUrl(int build) throws IOException {
+        return Bootstrapper.MIRRORS.locate(build + "/artifact/target/" + Bootstrapper.JAR_NAME, Bootstrapper.METADATA.getChecksum(build, Bootstrapper.JAR_NAME));
+    }
+
+    synchronized void recordDownload(long bytes, long nanos) {
+        downloadedBytes += bytes;
+        downloadNanos += nanos;
+    }
+
+    synchronized void recordDecode(long bytes, long nanos) {
+        decodedBytes += bytes;
+        decodeNanos += nanos;
+    }
+
+    /**
+     * Folds the rates measured during this update into the stored ones.
+     */
+    synchronized void save() {
+        // Only trust measurements over a meaningful amount of data
+        if (downloadedBytes >= 64 * 1024 && downloadNanos > 0) {
+            downloadRate = (downloadRate + downloadedBytes / (downloadNanos / 1e9)) / 2;
+        }
+        if (decodedBytes >= 64 * 1024 && decodeNanos > 0) {
+            decodeRate = (decodeRate + decodedBytes / (decodeNanos / 1e9)) / 2;
+        }
+        Properties properties = new Properties();
+        properties.setProperty("downloadRate", String.valueOf(downloadRate));
+        properties.setProperty("decodeRate", String.valueOf(decodeRate));
+        properties.setProperty("latency", String.valueOf(latency));
+        try (OutputStream out = new FileOutputStream(statsFile)) {
+            properties.store(out, "Measured update performance");
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Probes the patch the pipeline will use for the build. The build metadata is cached, so the pipeline doesn't
+     * fetch it again.
+     *
+     * @return the size of the patch, 0 if the build has none, or -1 if the server did not say
+     */
+    private static long patchLength(int build) throws IOException {
+        JsonObject object = Bootstrapper.METADATA.getBuild(build);
+        JsonValue result = object.get("result");
+        if (result == null || !result.isString() || !result.asString().equals("SUCCESS")) {
+            return 0;
+        }
+        return contentLength(build, PatchPipeline.getPatchName(object));
+    }
+
+    /**
+     * @return the size of an artifact of a build, 0 if it does not exist, or -1 if the server did not say
+     */
+    private static long contentLength(int build, String artifact) throws IOException {
+        // The checksum is needed to fetch the artifact anyway, and is cached from here on
+        String checksum = Bootstrapper.METADATA.getChecksum(build, artifact);
+        HttpURLConnection connection = Bootstrapper.MIRRORS.open(build + "/artifact/target/" + artifact, checksum, head -> head.setRequestMethod("HEAD"));
+        try {
+            int code = connection.getResponseCode();
+            if (code == 404) {
+                return 0;
+            }
+            if (code != 200) {
+                return -1;
+            }
+            return connection.getContentLengthLong();
+        } finally {
+            Transfers.drain(connection);
+        }
+    }
+
+    static class Plan {
+        /**
+         * The build whose full jar should be downloaded first, or -1 to patch from the current build
+         */
+        final int fullBuild;
+        final long fullSize;
+        final int patches;
+        final long patchBytes;
+        final long estimatedMillis;
+
+        Plan(int fullBuild, long fullSize, int patches, long patchBytes, long estimatedMillis) {
+            this.fullBuild = fullBuild;
+            this.fullSize = fullSize;
+            this.patches = patches;
+            this.patchBytes = patchBytes;
+            this.estimatedMillis = estimatedMillis;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            if (fullBuild != -1) {
+                builder.append("download build ").append(fullBuild).append(" (").append(Bootstrapper.bytesToMeg(fullSize)).append("MB)");
+                if (patches > 0) {
+                    builder.append(", then ");
+                }
+            }
+            if (patches > 0 || fullBuild == -1) {
+                builder.append("apply ").append(patches).append(" patches (").append(Bootstrapper.bytesToMeg(patchBytes)).append("MB)");
+            }
+            return builder.append(", estimated ").append(estimatedMillis).append("ms").toString();
+        }
+    }
+}
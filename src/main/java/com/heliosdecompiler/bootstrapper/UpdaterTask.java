@@ -1,43 +1,45 @@
 package com.heliosdecompiler.bootstrapper;
 
-import javax.swing.*;
-import java.io.ByteArrayOutputStream;
+import net.dongliu.vcdiff.exception.VcdiffDecodeException;
+
+import java.io.File;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
 
 class UpdaterTask implements Runnable {
 
     private int buildNumber;
+    private String hash;
+    private final Channel channel;
+    private final File install;
 
-    UpdaterTask(int currentBuildNumber) {
-        this.buildNumber = currentBuildNumber;
+    UpdaterTask(HeliosData current, Channel channel, File install) {
+        this.buildNumber = current.buildNumber;
+        this.hash = current.hash;
+        this.channel = channel;
+        this.install = install;
     }
 
     public void run() {
+        // Staging an update must never compete with Helios itself
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
         try {
-            URL latestVersion = new URL("https://ci.samczsun.com/job/Helios/lastStableBuild/buildNumber");
-            HttpURLConnection connection = (HttpURLConnection) latestVersion.openConnection();
-            if (connection.getResponseCode() == 200) {
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                Bootstrapper.copy(connection.getInputStream(), outputStream);
-                String version = new String(outputStream.toByteArray(), "UTF-8");
-                System.out.println("Latest version: " + version);
-                int intVersion = Integer.parseInt(version);
-                if (intVersion > buildNumber) {
-                    int select = JOptionPane.showConfirmDialog(null, "There are " + (intVersion - buildNumber) + " patches available. Update?", null, JOptionPane.YES_NO_OPTION);
-                    if (select == JOptionPane.YES_OPTION) {
-                        Runtime.getRuntime().exec(new String[]{
-                                "java",
-                                "-jar",
-                                Bootstrapper.BOOTSTRAPPER_FILE.getAbsolutePath(),
-                                "--Xforceupdate"
-                        });
+            int intVersion = channel.getLatestBuild(false);
+            System.out.println("Latest version: " + intVersion);
+            if (intVersion > buildNumber) {
+                if (stage(intVersion)) {
+                    if (Reporter.get().confirm("Helios version " + intVersion + " has been downloaded and will be used the next time Helios starts. Restart now?")) {
+                        // Otherwise the new instance could hand its arguments straight back to this one
+                        InstanceServer.stop();
+                        Runtime.getRuntime().exec(Bootstrapper.relaunchCommand());
                         System.exit(0);
                     }
+                    return;
+                }
+                if (Reporter.get().confirm("There are " + (intVersion - buildNumber) + " patches available. Update?")) {
+                    InstanceServer.stop();
+                    Runtime.getRuntime().exec(Bootstrapper.relaunchCommand("--Xforceupdate"));
+                    System.exit(0);
                 }
-            } else {
-                throw new IOException(connection.getResponseCode() + ": " + connection.getResponseMessage());
             }
         } catch (Throwable t) {
             if (Boolean.getBoolean("com.heliosdecompiler.isDebugging")) {
@@ -45,4 +47,118 @@ class UpdaterTask implements Runnable {
             }
         }
     }
+
+    /**
+     * Downloads and decodes everything between the running build and {@code latest} into the artifact store while
+     * Helios is running, so the next launch only has to switch the implementation file over.
+     *
+     * @return true if {@code latest} has been staged, false if it has to go through a forced update instead
+     */
+    boolean stage(int latest) throws IOException {
+        // Installs stage side by side, and two of them may well be fetching the same build
+        File directory = new File(install.getParentFile(), "staging");
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory.getAbsolutePath());
+        }
+        ArtifactStore store = Bootstrapper.store();
+        UpdatePlanner planner = new UpdatePlanner(new File(Bootstrapper.DATA_DIR, "update-stats.properties"));
+        UpdatePlanner.Plan plan = planner.plan(buildNumber, latest);
+        System.out.println("Staging update: " + plan);
+
+        File base = store.object(hash);
+        String baseHash = hash;
+        // The build base holds, which only reaches latest if the builds just before it weren't all skipped
+        int baseBuild = buildNumber;
+        // The newest jar built so far, which is ours to delete
+        File staged = null;
+        try {
+            if (plan.fullBuild != -1) {
+                File full = store.createTempFile();
+                String fullHash = download(planner, plan.fullBuild, full);
+                if (fullHash != null) {
+                    base = staged = full;
+                    baseHash = fullHash;
+                    baseBuild = plan.fullBuild;
+                } else {
+                    full.delete();
+                }
+            }
+
+            try (PatchPipeline pipeline = new PatchPipeline(directory, latest, planner)) {
+                for (int build = baseBuild + 1; build <= latest; build++) {
+                    PatchPipeline.BuildPatch patch = pipeline.take(build);
+                    if (patch.status == PatchPipeline.Status.OUTDATED || patch.status == PatchPipeline.Status.ERROR) {
+                        return false;
+                    }
+                    if (patch.status == PatchPipeline.Status.PATCH) {
+                        File decoded = store.createTempFile();
+                        String decodedHash;
+                        try {
+                            long start = System.nanoTime();
+                            try (Timings.Phase phase = Timings.beginPatch("decode", build)) {
+                                decodedHash = patch.apply(base, baseHash, decoded);
+                                phase.setBytes(decoded.length());
+                            }
+                            planner.recordDecode(decoded.length(), System.nanoTime() - start);
+                            Transfers.verify("build " + build, patch.expectedHash, decodedHash);
+                        } catch (IOException | VcdiffDecodeException e) {
+                            decoded.delete();
+                            throw new IOException("Could not stage build " + build, e);
+                        } finally {
+                            patch.delete();
+                        }
+                        if (staged != null) {
+                            staged.delete();
+                        }
+                        base = staged = decoded;
+                        baseHash = decodedHash;
+                        baseBuild = build;
+                    }
+                }
+            }
+
+            if (baseBuild != latest) {
+                // Staging what was built so far would record an older jar as latest
+                System.out.println("No patch leads to build " + latest + ", downloading it instead");
+                if (staged != null) {
+                    staged.delete();
+                }
+                staged = store.createTempFile();
+                baseHash = download(planner, latest, staged);
+                if (baseHash == null) {
+                    return false;
+                }
+            }
+            planner.save();
+
+            store.stage(staged, latest, baseHash, install);
+            staged = null;
+            System.out.println("Staged Helios version " + latest);
+            return true;
+        } finally {
+            if (staged != null) {
+                staged.delete();
+            }
+        }
+    }
+
+    /**
+     * Downloads the full jar of a build.
+     *
+     * @return the SHA-256 of the jar, or null if the build has none
+     */
+    private static String download(UpdatePlanner planner, int build, File dest) throws IOException {
+        SegmentedDownloader downloader = new SegmentedDownloader(planner.artifactUrl(build), dest);
+        if (downloader.probe() != 200) {
+            return null;
+        }
+        downloader.setExpectedHash(Bootstrapper.METADATA.getChecksum(build, Bootstrapper.JAR_NAME));
+        long start = System.nanoTime();
+        try (Timings.Phase phase = Timings.beginPatch("download", build)) {
+            phase.setBytes(downloader.getLength());
+            downloader.download(null);
+        }
+        planner.recordDownload(downloader.getLength(), System.nanoTime() - start);
+        return downloader.getHash();
+    }
 }
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import net.dongliu.vcdiff.exception.VcdiffDecodeException;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+/**
+ * An RFC 3284 VCDIFF decoder which works directly on {@link Region regions} of the source and the patch.
+ * <p>
+ * {@link net.dongliu.vcdiff.VcdiffDecoder} copies the source segment and builds every target window on the heap
+ * before writing it out, so its memory usage grows with the size of the jar. Here the source and the patch are
+ * read in place, at most {@code CHUNK} bytes at a time, and the target is streamed to disk, so the heap use doesn't
+ * depend on the size of the files whether they are mapped or not.
+ * <p>
+ * Only the default code table without secondary compression is supported, which is all the patches published
+ * by the CI server use.
+ */
+final class VcdiffPatcher {
+    private static final byte[] MAGIC = {(byte) 0xD6, (byte) 0xC3, (byte) 0xC4, 0x00};
+
+    private static final int VCD_DECOMPRESS = 0x01;
+    private static final int VCD_CODETABLE = 0x02;
+    private static final int VCD_APPHEADER = 0x04;
+
+    private static final int VCD_SOURCE = 0x01;
+    private static final int VCD_TARGET = 0x02;
+    private static final int VCD_ADLER32 = 0x04;
+
+    private static final int NOOP = 0;
+    private static final int ADD = 1;
+    private static final int RUN = 2;
+    private static final int COPY = 3;
+
+    private static final int CHUNK = 64 * 1024;
+
+    private static final int NEAR_SIZE = 4;
+    private static final int SAME_SIZE = 3;
+
+    /**
+     * The default code table from section 5.6 of the RFC, indexed by [half][opcode]
+     */
+    private static final int[][] TYPE = new int[2][256];
+    private static final int[][] SIZE = new int[2][256];
+    private static final int[][] MODE = new int[2][256];
+
+    static {
+        int index = 0;
+        set(index++, RUN, 0, 0, NOOP, 0, 0);
+        for (int size = 0; size <= 17; size++) {
+            set(index++, ADD, size, 0, NOOP, 0, 0);
+        }
+        for (int mode = 0; mode <= 8; mode++) {
+            set(index++, COPY, 0, mode, NOOP, 0, 0);
+            for (int size = 4; size <= 18; size++) {
+                set(index++, COPY, size, mode, NOOP, 0, 0);
+            }
+        }
+        for (int mode = 0; mode <= 5; mode++) {
+            for (int addSize = 1; addSize <= 4; addSize++) {
+                for (int copySize = 4; copySize <= 6; copySize++) {
+                    set(index++, ADD, addSize, 0, COPY, copySize, mode);
+                }
+            }
+        }
+        for (int mode = 6; mode <= 8; mode++) {
+            for (int addSize = 1; addSize <= 4; addSize++) {
+                set(index++, ADD, addSize, 0, COPY, 4, mode);
+            }
+        }
+        for (int mode = 0; mode <= 8; mode++) {
+            set(index++, COPY, 4, mode, ADD, 1, 0);
+        }
+    }
+
+    private static void set(int index, int type1, int size1, int mode1, int type2, int size2, int mode2) {
+        TYPE[0][index] = type1;
+        SIZE[0][index] = size1;
+        MODE[0][index] = mode1;
+        TYPE[1][index] = type2;
+        SIZE[1][index] = size2;
+        MODE[1][index] = mode2;
+    }
+
+    private final Region source;
+    private final Cursor delta;
+    private final Target target;
+
+    private final int[] near = new int[NEAR_SIZE];
+    private final int[] same = new int[SAME_SIZE * 256];
+    private int nextSlot;
+
+    VcdiffPatcher(Region source, Region delta, Target target) {
+        this.source = source;
+        this.delta = new Cursor(delta, 0, delta.length());
+        this.target = target;
+    }
+
+    void decode() throws IOException, VcdiffDecodeException {
+        try {
+            readHeader();
+            while (delta.hasRemaining()) {
+                decodeWindow();
+            }
+        } catch (BufferUnderflowException | BufferOverflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new VcdiffDecodeException("Corrupt patch: " + e);
+        }
+    }
+
+    private void readHeader() throws IOException, VcdiffDecodeException {
+        for (byte expected : MAGIC) {
+            if (delta.get() != expected) {
+                throw new VcdiffDecodeException("The file is not a valid vcdiff file");
+            }
+        }
+        int indicator = delta.get() & 0xFF;
+        if ((indicator & (VCD_DECOMPRESS | VCD_CODETABLE)) != 0) {
+            throw new VcdiffDecodeException("Secondary compressors and custom code tables are not supported");
+        }
+        if ((indicator & ~VCD_APPHEADER) != 0) {
+            throw new VcdiffDecodeException("Invalid header indicator " + indicator);
+        }
+        if ((indicator & VCD_APPHEADER) != 0) {
+            delta.skip(readInt(delta));
+        }
+    }
+
+    private void decodeWindow() throws IOException, VcdiffDecodeException {
+        int indicator = delta.get() & 0xFF;
+        Region segment;
+        if ((indicator & ~(VCD_SOURCE | VCD_TARGET | VCD_ADLER32)) != 0 || (indicator & VCD_SOURCE) != 0 && (indicator & VCD_TARGET) != 0) {
+            throw new VcdiffDecodeException("Invalid window indicator " + indicator);
+        }
+        if ((indicator & (VCD_SOURCE | VCD_TARGET)) != 0) {
+            int length = readInt(delta);
+            int position = readInt(delta);
+            if ((indicator & VCD_SOURCE) != 0) {
+                if ((long) position + length > source.length()) {
+                    throw new VcdiffDecodeException("Source segment is out of range");
+                }
+                segment = source.slice(position, length);
+            } else if ((long) position + length > target.position()) {
+                throw new VcdiffDecodeException("Target segment is out of range");
+            } else {
+                segment = target.segment(position, length);
+            }
+        } else {
+            segment = Region.of(ByteBuffer.allocate(0));
+        }
+
+        readInt(delta); // Length of the delta encoding
+        int targetLength = readInt(delta);
+        if (delta.get() != 0) {
+            throw new VcdiffDecodeException("Compressed delta sections are not supported");
+        }
+        int dataLength = readInt(delta);
+        int instructionsLength = readInt(delta);
+        int addressesLength = readInt(delta);
+        long expectedChecksum = (indicator & VCD_ADLER32) != 0 ? readLong(delta) : 0;
+
+        Cursor data = delta.section(dataLength);
+        Cursor instructions = delta.section(instructionsLength);
+        Cursor addresses = delta.section(addressesLength);
+
+        Arrays.fill(near, 0);
+        Arrays.fill(same, 0);
+        nextSlot = 0;
+        target.resetChecksum();
+
+        int segmentLength = (int) segment.length();
+        long windowStart = target.position();
+        int written = 0;
+        while (instructions.hasRemaining()) {
+            int opcode = instructions.get() & 0xFF;
+            for (int half = 0; half < 2; half++) {
+                int type = TYPE[half][opcode];
+                if (type == NOOP) {
+                    continue;
+                }
+                int size = SIZE[half][opcode];
+                if (size == 0) {
+                    size = readInt(instructions);
+                }
+                if (written + size > targetLength) {
+                    throw new VcdiffDecodeException("Target window overflow");
+                }
+                switch (type) {
+                    case ADD:
+                        data.copyTo(target, size);
+                        break;
+                    case RUN:
+                        target.writeRun(data.get(), size);
+                        break;
+                    case COPY:
+                        int address = readAddress(addresses, segmentLength + written, MODE[half][opcode]);
+                        int fromSegment = Math.max(0, Math.min(size, segmentLength - address));
+                        for (int done = 0; done < fromSegment; done += CHUNK) {
+                            target.write(segment.read(address + done, Math.min(CHUNK, fromSegment - done)));
+                        }
+                        if (fromSegment < size) {
+                            target.copyWithin(windowStart + Math.max(0, address - segmentLength), size - fromSegment);
+                        }
+                        break;
+                    default:
+                        throw new VcdiffDecodeException("Invalid instruction type " + type);
+                }
+                written += size;
+            }
+        }
+        if (written != targetLength) {
+            throw new VcdiffDecodeException("Expected " + targetLength + " bytes in target window but got " + written);
+        }
+        // The jvcdiff encoder reserves the checksum field but always writes 0, which is never a valid Adler32
+        if (expectedChecksum != 0 && expectedChecksum != target.checksum()) {
+            throw new VcdiffDecodeException("Target window checksum mismatch");
+        }
+    }
+
+    private int readAddress(Cursor addresses, int here, int mode) throws IOException, VcdiffDecodeException {
+        int address;
+        if (mode == 0) {
+            address = readInt(addresses);
+        } else if (mode == 1) {
+            address = here - readInt(addresses);
+        } else if (mode - 2 < NEAR_SIZE) {
+            address = near[mode - 2] + readInt(addresses);
+        } else {
+            address = same[(mode - 2 - NEAR_SIZE) * 256 + (addresses.get() & 0xFF)];
+        }
+        if (address < 0 || address >= here) {
+            throw new VcdiffDecodeException("Invalid copy address " + address);
+        }
+        near[nextSlot] = address;
+        nextSlot = (nextSlot + 1) % NEAR_SIZE;
+        same[address % same.length] = address;
+        return address;
+    }
+
+    private static int readInt(Cursor buffer) throws IOException, VcdiffDecodeException {
+        long value = readLong(buffer);
+        if (value > Integer.MAX_VALUE) {
+            throw new VcdiffDecodeException("Integer overflow");
+        }
+        return (int) value;
+    }
+
+    private static long readLong(Cursor buffer) throws IOException, VcdiffDecodeException {
+        long value = 0;
+        for (int i = 0; i < 9; i++) {
+            int b = buffer.get() & 0xFF;
+            value = (value << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new VcdiffDecodeException("Integer overflow");
+    }
+
+    /**
+     * Where the decoded file is written. Positions are relative to the start of the decoded file.
+     */
+    interface Target {
+        long position();
+
+        /**
+         * Adler32 of everything written since the last call to {@link #resetChecksum()}
+         */
+        long checksum();
+
+        void resetChecksum();
+
+        void write(ByteBuffer data) throws IOException;
+
+        void writeRun(byte value, int count) throws IOException;
+
+        /**
+         * Appends {@code length} bytes which were previously written at {@code from}. The ranges may overlap,
+         * in which case the result is the same as copying one byte at a time.
+         */
+        void copyWithin(long from, int length) throws IOException;
+
+        /**
+         * @return a range which has already been written, for as long as the current window is decoded
+         */
+        Region segment(long from, int length) throws IOException;
+    }
+
+    /**
+     * Reads a range of a region front to back, a chunk at a time.
+     */
+    private static final class Cursor {
+        private final Region region;
+        private final long end;
+        /**
+         * Where the chunk after the current one starts
+         */
+        private long next;
+        private ByteBuffer chunk = ByteBuffer.allocate(0);
+
+        Cursor(Region region, long start, long end) {
+            this.region = region;
+            this.next = start;
+            this.end = end;
+        }
+
+        boolean hasRemaining() {
+            return chunk.hasRemaining() || next < end;
+        }
+
+        byte get() throws IOException {
+            if (!chunk.hasRemaining()) {
+                if (next >= end) {
+                    throw new BufferUnderflowException();
+                }
+                int length = (int) Math.min(CHUNK, end - next);
+                chunk = region.read(next, length);
+                next += length;
+            }
+            return chunk.get();
+        }
+
+        void skip(int length) {
+            long position = next - chunk.remaining() + length;
+            if (length < 0 || position > end) {
+                throw new BufferUnderflowException();
+            }
+            next = position;
+            chunk = ByteBuffer.allocate(0);
+        }
+
+        /**
+         * @return a cursor over the next {@code length} bytes, which this one skips
+         */
+        Cursor section(int length) {
+            long start = next - chunk.remaining();
+            skip(length);
+            return new Cursor(region, start, start + length);
+        }
+
+        void copyTo(Target target, int length) throws IOException {
+            long start = next - chunk.remaining();
+            skip(length);
+            for (int done = 0; done < length; done += CHUNK) {
+                target.write(region.read(start + done, Math.min(CHUNK, length - done)));
+            }
+        }
+    }
+
+    /**
+     * A target held on the heap, for files small enough to be decoded in one piece, such as a single jar entry.
+     */
+    static final class BufferTarget implements Target {
+        private final ByteBuffer buffer;
+        private final Adler32 checksum = new Adler32();
+
+        BufferTarget(int length) {
+            this.buffer = ByteBuffer.allocate(length);
+        }
+
+        @Override
+        public long position() {
+            return buffer.position();
+        }
+
+        @Override
+        public long checksum() {
+            return checksum.getValue();
+        }
+
+        @Override
+        public void resetChecksum() {
+            checksum.reset();
+        }
+
+        @Override
+        public void write(ByteBuffer data) {
+            checksum.update(data.duplicate());
+            buffer.put(data);
+        }
+
+        @Override
+        public void writeRun(byte value, int count) {
+            for (int i = 0; i < count; i++) {
+                buffer.put(value);
+                checksum.update(value);
+            }
+        }
+
+        @Override
+        public void copyWithin(long from, int length) {
+            for (int i = 0; i < length; i++) {
+                byte value = buffer.get((int) from + i);
+                buffer.put(value);
+                checksum.update(value);
+            }
+        }
+
+        @Override
+        public Region segment(long from, int length) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.position((int) from);
+            slice.limit((int) from + length);
+            return Region.of(slice);
+        }
+
+        /**
+         * @return everything written, or null if less was written than the target was created for
+         */
+        ByteBuffer result() {
+            if (buffer.hasRemaining()) {
+                return null;
+            }
+            ByteBuffer result = buffer.duplicate();
+            result.flip();
+            return result;
+        }
+    }
+}
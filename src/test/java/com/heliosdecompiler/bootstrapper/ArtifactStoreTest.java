@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.heliosdecompiler.bootstrapper;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ArtifactStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dataDirectory;
+    private File target;
+    private ArtifactStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dataDirectory = folder.getRoot();
+        target = new File(dataDirectory, "helios.jar");
+        store = new ArtifactStore(dataDirectory);
+    }
+
+    @Test
+    public void activatesByLinking() throws IOException {
+        File file = jar(1);
+        String hash = store.put(file, 1, ArtifactStore.hash(file));
+        assertFalse(file.exists());
+        assertEquals(hash, store.getBuild(1));
+
+        store.activate(hash, target);
+        assertTrue(Files.isSameFile(target.toPath(), store.object(hash).toPath()));
+        assertEquals("build 1", new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8));
+        assertNull(store.getPrevious(target));
+
+        // The index is on disk, so another process sees the same store
+        ArtifactStore reloaded = new ArtifactStore(dataDirectory);
+        assertEquals(hash, reloaded.getBuild(1));
+        assertEquals(1, reloaded.getBuildNumber(hash));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        String first = put(1);
+        String second = put(2);
+        store.activate(first, target);
+        store.activate(second, target);
+        File patchFile = file("patch 3");
+        String patch = store.putPatch(patchFile, 3, "delta.patch", ArtifactStore.hash(patchFile));
+        for (int build = 3; build <= 9; build++) {
+            // Builds are ordered by when they were last used, which has millisecond resolution
+            Thread.sleep(5);
+            put(build);
+        }
+
+        store.evict(target);
+
+        // The five most recent builds fill the store, but the active and previous ones stay regardless
+        for (int build : new int[]{1, 2, 5, 6, 7, 8, 9}) {
+            assertNotNull("Build " + build, store.getBuild(build));
+        }
+        assertNull(store.getBuild(3));
+        assertNull(store.getBuild(4));
+        assertFalse(store.object(patch).exists());
+        assertNull(new ArtifactStore(dataDirectory).getBuild(3));
+
+        // What the install would roll back to is still there
+        assertEquals(first, store.getPrevious(target));
+    }
+
+    @Test
+    public void keepsBuildsActiveInOtherInstalls() throws Exception {
+        // Another channel's install, which this evict isn't told about
+        File other = new File(folder.newFolder("other"), "helios.jar");
+        String first = put(1);
+        store.activate(first, other);
+        for (int build = 2; build <= 8; build++) {
+            Thread.sleep(5);
+            store.activate(put(build), target);
+        }
+
+        store.evict(target);
+
+        assertEquals(first, store.getBuild(1));
+        assertTrue(store.object(first).exists());
+    }
+
+    @Test
+    public void rollsBack() throws IOException {
+        String first = put(1);
+        String second = put(2);
+        store.activate(first, target);
+        store.activate(second, target);
+        assertEquals(first, store.getPrevious(target));
+
+        store.activate(store.getPrevious(target), target);
+        assertTrue(Files.isSameFile(target.toPath(), store.object(first).toPath()));
+        // Rolling back again undoes the rollback
+        assertEquals(second, store.getPrevious(target));
+    }
+
+    @Test
+    public void appliesStagedBuild() throws IOException {
+        String first = put(1);
+        store.activate(first, target);
+
+        File file = jar(2);
+        String staged = store.stage(file, 2, ArtifactStore.hash(file), target);
+        assertTrue(Files.isSameFile(target.toPath(), store.object(first).toPath()));
+
+        assertEquals(2, store.applyStaged(1, target));
+        assertTrue(Files.isSameFile(target.toPath(), store.object(staged).toPath()));
+        assertEquals(first, store.getPrevious(target));
+        assertEquals(staged, new ArtifactStore(dataDirectory).getBuild(2));
+        // The staged build is consumed
+        assertEquals(-1, store.applyStaged(2, target));
+    }
+
+    @Test
+    public void recordsSupersededStagedBuild() throws IOException {
+        store.activate(put(1), target);
+        File file = jar(2);
+        String superseded = store.stage(file, 2, ArtifactStore.hash(file), target);
+        file = jar(3);
+        String staged = store.stage(file, 3, ArtifactStore.hash(file), target);
+
+        // Build 2 will never be applied, but is recorded so eviction can reclaim it
+        assertEquals(superseded, new ArtifactStore(dataDirectory).getBuild(2));
+        assertEquals(3, store.applyStaged(1, target));
+        assertTrue(Files.isSameFile(target.toPath(), store.object(staged).toPath()));
+    }
+
+    @Test
+    public void ignoresOlderStagedBuild() throws IOException {
+        String second = put(2);
+        store.activate(second, target);
+
+        File file = jar(1);
+        store.stage(file, 1, ArtifactStore.hash(file), target);
+        assertEquals(-1, store.applyStaged(2, target));
+        assertTrue(Files.isSameFile(target.toPath(), store.object(second).toPath()));
+        assertEquals(-1, store.applyStaged(2, target));
+    }
+
+    @Test
+    public void keepsChangesOfOtherStores() throws IOException {
+        // Another process using the same store, such as a mirror running next to an update
+        ArtifactStore other = new ArtifactStore(dataDirectory);
+        String first = put(1);
+        File file = other.createTempFile();
+        Files.write(file.toPath(), "build 2".getBytes(StandardCharsets.UTF_8));
+        String second = other.put(file, 2, ArtifactStore.hash(file));
+        store.activate(first, target);
+
+        ArtifactStore reloaded = new ArtifactStore(dataDirectory);
+        assertEquals(first, reloaded.getBuild(1));
+        assertEquals(second, reloaded.getBuild(2));
+        assertEquals(second, store.getBuild(2));
+    }
+
+    private String put(int buildNumber) throws IOException {
+        File file = jar(buildNumber);
+        return store.put(file, buildNumber, ArtifactStore.hash(file));
+    }
+
+    private File jar(int buildNumber) throws IOException {
+        return file("build " + buildNumber);
+    }
+
+    private File file(String content) throws IOException {
+        File file = store.createTempFile();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
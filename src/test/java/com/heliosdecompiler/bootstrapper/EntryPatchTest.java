@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EntryPatchTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rebuildsTarget() throws Exception {
+        byte[] same = text(1, 500, -1);
+        Map<String, byte[]> before = new LinkedHashMap<>();
+        before.put("fake/Same.class", same);
+        before.put("fake/Changed.class", text(2, 5000, -1));
+        before.put("fake/Removed.class", text(3, 500, -1));
+        Map<String, byte[]> after = new LinkedHashMap<>();
+        after.put("fake/Same.class", same);
+        after.put("fake/Added.class", text(4, 50, -1));
+        // One line early in the entry changes, which shifts everything deflated after it
+        after.put("fake/Changed.class", text(2, 5000, 10));
+        File source = write(FakeCi.jar(1, before));
+        byte[] targetBytes = FakeCi.jar(2, after);
+        File target = write(targetBytes);
+
+        File patch = folder.newFile();
+        EntryPatch.create(source, target, patch);
+        File rebuilt = folder.newFile();
+        String hash = EntryPatch.apply(source, ArtifactStore.hash(source), patch, rebuilt);
+
+        assertArrayEquals(targetBytes, Files.readAllBytes(rebuilt.toPath()));
+        assertEquals(FakeCi.sha256(targetBytes), hash);
+        // The changed entry is carried as a delta of its contents rather than of its deflated bytes
+        long changed;
+        long added;
+        try (ZipFile zip = new ZipFile(target)) {
+            changed = zip.getEntry("fake/Changed.class").getCompressedSize();
+            added = zip.getEntry("fake/Added.class").getCompressedSize();
+        }
+        assertTrue(patch.length() + " bytes", patch.length() < added + changed / 4);
+    }
+
+    @Test
+    public void rebuildsIdenticalJar() throws Exception {
+        byte[] jar = FakeCi.jar(1, Collections.singletonMap("fake/Main.class", text(1, 500, -1)));
+        File source = write(jar);
+        File patch = folder.newFile();
+        EntryPatch.create(source, write(jar), patch);
+        File rebuilt = folder.newFile();
+        EntryPatch.apply(source, null, patch, rebuilt);
+
+        assertArrayEquals(jar, Files.readAllBytes(rebuilt.toPath()));
+    }
+
+    /**
+     * @return {@code lines} lines of text which deflate well, with line {@code changed} different if it isn't -1
+     */
+    private static byte[] text(long seed, int lines, int changed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        for (int line = 0; line < lines; line++) {
+            text.append(line == changed ? "changed" : "line").append(' ').append(random.nextInt(1000)).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
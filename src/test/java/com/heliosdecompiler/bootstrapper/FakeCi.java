@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * A stand-in for the CI server on loopback, laid out like the Jenkins job the bootstrapper talks to.
+ * <p>
+ * The bootstrapper reads the CI server and its data directory from system properties once, when it is initialized,
+ * so a test class using this sets them up through {@link #install} before it touches the bootstrapper. Surefire runs
+ * every test class in a JVM of its own.
+ */
+class FakeCi implements Closeable {
+    private final HttpServer server;
+    private final Map<Integer, String> results = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+    FakeCi() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            try {
+                serve(exchange);
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Points the bootstrapper at this server, with {@code home} as the user's home directory.
+     */
+    void install(File home) {
+        System.setProperty("user.home", home.getAbsolutePath());
+        System.setProperty("com.heliosdecompiler.ciUrl", getUrl());
+        System.setProperty("com.heliosdecompiler.isDebugging", "true");
+        System.setProperty("com.heliosdecompiler.headless", "true");
+    }
+
+    String getUrl() {
+        return "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getAddress().getPort();
+    }
+
+    void setLatest(String permalink, int build) {
+        files.put(permalink + "/buildNumber", String.valueOf(build).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param result {@code SUCCESS} for a build whose artifacts the bootstrapper may use
+     */
+    void addBuild(int build, String result) {
+        results.put(build, result);
+    }
+
+    /**
+     * Publishes an artifact of a build, along with its SHA-256 if {@code checksum} is set.
+     */
+    void addArtifact(int build, String name, byte[] data, boolean checksum) {
+        String path = build + "/artifact/target/" + name;
+        files.put(path, data);
+        if (checksum) {
+            files.put(path + ".sha256", (sha256(data) + "  " + name + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Serves {@code data} at {@code path}, relative to the job.
+     */
+    void put(String path, byte[] data) {
+        files.put(path, data);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath().substring(1);
+        requests.add(exchange.getRequestMethod() + " " + path);
+        byte[] body = files.get(path);
+        if (body == null && path.endsWith("/api/json")) {
+            body = buildJson(Integer.parseInt(path.substring(0, path.indexOf('/'))));
+        }
+        if (body == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(body.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private byte[] buildJson(int build) {
+        String result = results.get(build);
+        if (result == null) {
+            return null;
+        }
+        JsonArray artifacts = new JsonArray();
+        String prefix = build + "/artifact/target/";
+        for (String path : new TreeMap<>(files).keySet()) {
+            if (path.startsWith(prefix) && !path.endsWith(".sha256")) {
+                artifacts.add(new JsonObject().add("fileName", path.substring(prefix.length())));
+            }
+        }
+        return new JsonObject()
+                .add("number", build)
+                .add("building", false)
+                .add("result", result)
+                .add("artifacts", artifacts)
+                .toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a Helios jar of the given build, with a class whose contents differ in every build
+     */
+    static byte[] jar(int build, Map<String, byte[]> entries) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_VERSION, String.valueOf(build));
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "fake.Main");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JarOutputStream out = new JarOutputStream(bytes, manifest)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                out.putNextEntry(new JarEntry(entry.getKey()));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+            out.putNextEntry(new JarEntry("fake/Build.class"));
+            out.write(("build " + build).getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] jar(int build) throws IOException {
+        return jar(build, Collections.emptyMap());
+    }
+
+    static String sha256(byte[] data) {
+        return ArtifactStore.toHex(ArtifactStore.sha256().digest(data));
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class InstanceServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void absolutizesRelativeFiles() throws IOException {
+        File directory = folder.newFolder("cwd");
+        File jar = new File(directory, "app.jar");
+        new File(directory, "sub").mkdir();
+        File nested = new File(directory, "sub/Main.class");
+        jar.createNewFile();
+        nested.createNewFile();
+        File absolute = folder.newFile("other.jar");
+
+        String[] args = {"app.jar", "sub" + File.separator + "Main.class", "--Xforceupdate", "missing.jar", absolute.getPath(), ""};
+        assertArrayEquals(new String[]{jar.getAbsolutePath(), nested.getAbsolutePath(), "--Xforceupdate", "missing.jar", absolute.getPath(), ""},
+                InstanceServer.absolutize(args, directory));
+    }
+}
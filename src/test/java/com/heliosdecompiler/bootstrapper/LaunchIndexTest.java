@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.heliosdecompiler.bootstrapper;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LaunchIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File indexFile;
+    private File jar;
+    private File bootstrapper;
+
+    @Before
+    public void setUp() throws IOException {
+        indexFile = new File(folder.getRoot(), "launch.idx");
+        jar = folder.newFile("helios.jar");
+        Files.write(jar.toPath(), new byte[]{1, 2, 3, 4});
+        bootstrapper = folder.newFile("bootstrapper.jar");
+        Files.write(bootstrapper.toPath(), new byte[]{5, 6, 7});
+    }
+
+    @Test
+    public void hitsAfterReload() throws IOException {
+        LaunchIndex.load(indexFile).setImplementation(jar, data(42));
+        LaunchIndex.load(indexFile).setBootstrapperVerified(bootstrapper);
+
+        LaunchIndex index = LaunchIndex.load(indexFile);
+        HeliosData data = index.getImplementation(jar);
+        assertNotNull(data);
+        assertEquals(42, data.buildNumber);
+        assertEquals("1.0", data.version);
+        assertEquals("com.heliosdecompiler.helios.Helios", data.mainClass);
+        assertEquals("abc", data.hash);
+        assertTrue(index.isBootstrapperVerified(bootstrapper));
+    }
+
+    @Test
+    public void missesAfterModification() throws IOException {
+        LaunchIndex.load(indexFile).setImplementation(jar, data(42));
+        assertTrue(jar.setLastModified(jar.lastModified() - 10000));
+
+        assertNull(LaunchIndex.load(indexFile).getImplementation(jar));
+    }
+
+    @Test
+    public void missesAfterResize() throws IOException {
+        LaunchIndex.load(indexFile).setImplementation(jar, data(42));
+        long modified = jar.lastModified();
+        Files.write(jar.toPath(), new byte[]{5}, StandardOpenOption.APPEND);
+        // Only the size gives the change away
+        assertTrue(jar.setLastModified(modified));
+
+        assertNull(LaunchIndex.load(indexFile).getImplementation(jar));
+    }
+
+    @Test
+    public void keepsRecordPerInstall() throws IOException {
+        File other = new File(folder.newFolder("last-successful"), "helios.jar");
+        Files.write(other.toPath(), new byte[]{9, 8, 7});
+        LaunchIndex.load(indexFile).setImplementation(jar, data(42));
+        LaunchIndex.load(indexFile).setImplementation(other, data(43));
+
+        // Launching the other channel didn't take the first one's record
+        LaunchIndex index = LaunchIndex.load(indexFile);
+        assertEquals(42, index.getImplementation(jar).buildNumber);
+        assertEquals(43, index.getImplementation(other).buildNumber);
+    }
+
+    @Test
+    public void ignoresCorruptIndex() throws IOException {
+        LaunchIndex.load(indexFile).setImplementation(jar, data(42));
+        byte[] valid = Files.readAllBytes(indexFile.toPath());
+
+        Files.write(indexFile.toPath(), new byte[]{0x48, 0x4C, 0x49, 0x58, 0, 0, 0, 2, 1, 0, 0});
+        assertNull(LaunchIndex.load(indexFile).getImplementation(jar));
+
+        Files.write(indexFile.toPath(), "not an index".getBytes("UTF-8"));
+        assertNull(LaunchIndex.load(indexFile).getImplementation(jar));
+
+        byte[] truncated = new byte[valid.length - 3];
+        System.arraycopy(valid, 0, truncated, 0, truncated.length);
+        Files.write(indexFile.toPath(), truncated);
+        LaunchIndex index = LaunchIndex.load(indexFile);
+        assertNull(index.getImplementation(jar));
+
+        // A corrupt index is simply overwritten by the next launch
+        index.setImplementation(jar, data(43));
+        assertEquals(43, LaunchIndex.load(indexFile).getImplementation(jar).buildNumber);
+    }
+
+    private static HeliosData data(int buildNumber) {
+        HeliosData data = new HeliosData();
+        data.buildNumber = buildNumber;
+        data.version = "1.0";
+        data.mainClass = "com.heliosdecompiler.helios.Helios";
+        data.hash = "abc";
+        return data;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class MirrorServerTest {
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static FakeCi ci;
+    private static HttpServer server;
+    private static String mirrorUrl;
+    private static byte[] first;
+    private static byte[] fourth;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        ci = new FakeCi();
+        ci.install(folder.newFolder("home"));
+        first = FakeCi.jar(1);
+        fourth = FakeCi.jar(4);
+
+        ci.addBuild(1, "SUCCESS");
+        ci.addArtifact(1, Bootstrapper.JAR_NAME, first, true);
+        ci.addArtifact(1, "helios-other.jar", first, true);
+        // Published without a checksum
+        ci.addBuild(2, "SUCCESS");
+        ci.addArtifact(2, Bootstrapper.JAR_NAME, FakeCi.jar(2), false);
+        // Doesn't match its checksum
+        ci.addBuild(3, "SUCCESS");
+        ci.addArtifact(3, Bootstrapper.JAR_NAME, FakeCi.jar(3), false);
+        ci.put("3/artifact/target/" + Bootstrapper.JAR_NAME + ".sha256", FakeCi.sha256(first).getBytes(StandardCharsets.UTF_8));
+        ci.addBuild(4, "SUCCESS");
+        ci.addArtifact(4, Bootstrapper.JAR_NAME, fourth, true);
+
+        // The mirror's own install claims to be build 4, but isn't the jar the CI server built
+        File installed = folder.newFile("helios.jar");
+        Files.write(installed.toPath(), FakeCi.jar(4, Collections.singletonMap("fake/Local.class", new byte[]{1})));
+        server = MirrorServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), installed);
+        mirrorUrl = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getAddress().getPort();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        server.stop(0);
+        ci.close();
+    }
+
+    @Test
+    public void servesVerifiedArtifacts() throws IOException {
+        assertArrayEquals(first, get(jarPath(1), 200));
+        // Served from the mirror's store the second time
+        ci.requests.clear();
+        assertArrayEquals(first, get(jarPath(1), 200));
+        assertFalse(ci.requests.toString(), ci.requests.contains("GET " + jarPath(1)));
+    }
+
+    @Test
+    public void replacesForeignInstalledJar() throws IOException {
+        assertArrayEquals(fourth, get(jarPath(4), 200));
+    }
+
+    @Test
+    public void rejectsUnverifiableArtifacts() throws IOException {
+        get(jarPath(2), 404);
+        get(jarPath(3), 502);
+        get("1/artifact/target/helios-other.jar", 404);
+        get("1/api/json", 404);
+    }
+
+    @Test
+    public void usesMirrorOnlyWithChecksum() throws IOException {
+        Mirrors mirrors = new Mirrors(ci.getUrl(), Collections.singletonList(mirrorUrl));
+        assertEquals(new URL(mirrorUrl + "/" + jarPath(1)), mirrors.locate(jarPath(1), FakeCi.sha256(first)));
+        assertEquals(new URL(ci.getUrl() + "/" + jarPath(1)), mirrors.locate(jarPath(1), null));
+
+        HttpURLConnection connection = mirrors.open(jarPath(2), null, null);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(new URL(ci.getUrl() + "/" + jarPath(2)), connection.getURL());
+        Transfers.drain(connection);
+    }
+
+    private static String jarPath(int build) {
+        return build + "/artifact/target/" + Bootstrapper.JAR_NAME;
+    }
+
+    private static byte[] get(String path, int expectedCode) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mirrorUrl + "/" + path).openConnection();
+        try {
+            assertEquals(path, expectedCode, connection.getResponseCode());
+            if (expectedCode != 200) {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
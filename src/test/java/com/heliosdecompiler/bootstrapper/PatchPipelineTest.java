@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import net.dongliu.vcdiff.VcdiffEncoder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PatchPipelineTest {
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static FakeCi ci;
+    private static byte[][] jars = new byte[8][];
+
+    private File directory;
+    private UpdatePlanner planner;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        ci = new FakeCi();
+        ci.install(folder.newFolder("home"));
+        for (int build = 1; build < jars.length; build++) {
+            jars[build] = FakeCi.jar(build, Collections.singletonMap("fake/Main.class", ("main " + build).getBytes(StandardCharsets.UTF_8)));
+        }
+
+        ci.addBuild(1, "SUCCESS");
+        ci.addBuild(2, "SUCCESS");
+        ci.addArtifact(2, Bootstrapper.JAR_NAME, jars[2], true);
+        ci.addArtifact(2, PatchPipeline.DELTA, delta(jars[1], jars[2]), true);
+        ci.addBuild(3, "FAILURE");
+        // Builds which publish both are applied through the patch per entry
+        ci.addBuild(4, "SUCCESS");
+        ci.addArtifact(4, Bootstrapper.JAR_NAME, jars[4], true);
+        ci.addArtifact(4, PatchPipeline.DELTA, delta(jars[2], jars[4]), true);
+        ci.addArtifact(4, EntryPatch.NAME, entries(jars[2], jars[4]), true);
+        // Successful, but without a patch
+        ci.addBuild(5, "SUCCESS");
+        ci.addArtifact(5, Bootstrapper.JAR_NAME, jars[5], true);
+        ci.addBuild(6, "SUCCESS");
+        ci.addArtifact(6, Bootstrapper.JAR_NAME, jars[6], true);
+        ci.addArtifact(6, PatchPipeline.DELTA, delta(jars[4], jars[6]), true);
+        // Build 7 has no metadata at all, and the patch of build 8 doesn't match its checksum
+        ci.addBuild(8, "SUCCESS");
+        ci.addArtifact(8, PatchPipeline.DELTA, delta(jars[6], jars[2]), false);
+        ci.put("8/artifact/target/" + PatchPipeline.DELTA + ".sha256", FakeCi.sha256(new byte[0]).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        ci.close();
+    }
+
+    @Before
+    public void setUpPipeline() throws Exception {
+        directory = folder.newFolder();
+        planner = new UpdatePlanner(new File(directory, "update-stats.properties"));
+    }
+
+    @Test
+    public void appliesChainInOrder() throws Exception {
+        File base = folder.newFile();
+        Files.write(base.toPath(), jars[1]);
+        String baseHash = FakeCi.sha256(jars[1]);
+        List<PatchPipeline.Status> statuses = new ArrayList<>();
+        try (PatchPipeline pipeline = new PatchPipeline(directory, 6, planner)) {
+            for (int build = 2; build <= 6; build++) {
+                PatchPipeline.BuildPatch patch = pipeline.take(build);
+                assertEquals(build, patch.buildNumber);
+                statuses.add(patch.status);
+                if (build == 2) {
+                    // The builds after it are fetched while this one is applied
+                    awaitRequest("GET 4/artifact/target/" + EntryPatch.NAME);
+                }
+                if (patch.status != PatchPipeline.Status.PATCH) {
+                    continue;
+                }
+                File target = folder.newFile();
+                String hash = patch.apply(base, baseHash, target);
+                Transfers.verify("build " + build, patch.expectedHash, hash);
+                assertArrayEquals("Build " + build, jars[build], Files.readAllBytes(target.toPath()));
+                patch.delete();
+                base = target;
+                baseHash = hash;
+            }
+        }
+
+        assertEquals(Arrays.asList(PatchPipeline.Status.PATCH, PatchPipeline.Status.SKIPPED, PatchPipeline.Status.PATCH,
+                PatchPipeline.Status.SKIPPED, PatchPipeline.Status.PATCH), statuses);
+        // Only the patch each build is applied through is downloaded
+        assertTrue(ci.requests.contains("GET 4/artifact/target/" + EntryPatch.NAME));
+        assertFalse(ci.requests.contains("GET 4/artifact/target/" + PatchPipeline.DELTA));
+        assertEquals(0, directory.list((dir, name) -> name.endsWith(".patch")).length);
+    }
+
+    @Test
+    public void reportsErrors() throws Exception {
+        try (PatchPipeline pipeline = new PatchPipeline(directory, 8, planner)) {
+            PatchPipeline.BuildPatch missing = pipeline.take(7);
+            assertEquals(PatchPipeline.Status.ERROR, missing.status);
+            PatchPipeline.BuildPatch tampered = pipeline.take(8);
+            assertEquals(PatchPipeline.Status.ERROR, tampered.status);
+            assertTrue(tampered.message, tampered.message.contains("build 8"));
+        }
+        // The patch which failed verification isn't left behind
+        assertEquals(0, directory.list((dir, name) -> name.endsWith(".patch")).length);
+    }
+
+    private static void awaitRequest(String request) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!ci.requests.contains(request)) {
+            assertTrue("Never requested " + request, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] delta(byte[] source, byte[] target) throws Exception {
+        File sourceFile = write(source);
+        File targetFile = write(target);
+        File patch = folder.newFile();
+        VcdiffEncoder.encode(sourceFile, targetFile, patch);
+        return Files.readAllBytes(patch.toPath());
+    }
+
+    private static byte[] entries(byte[] source, byte[] target) throws Exception {
+        File patch = folder.newFile();
+        EntryPatch.create(write(source), write(target), patch);
+        return Files.readAllBytes(patch.toPath());
+    }
+
+    private static File write(byte[] data) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
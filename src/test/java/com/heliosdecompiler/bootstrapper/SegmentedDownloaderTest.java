@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.heliosdecompiler.bootstrapper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentedDownloaderTest {
+    private static final int SIZE = 1024 * 1024;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    private HttpServer server;
+    private URL url;
+    private File dest;
+    private byte[] body;
+
+    // What the server answers with, changed by the tests as they go
+    private volatile String headEtag = "\"a\"";
+    private volatile String etag = "\"a\"";
+    private volatile int limit;
+
+    @Before
+    public void setUp() throws IOException {
+        body = new byte[SIZE];
+        new Random(2).nextBytes(body);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            try {
+                serve(exchange);
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        url = new URL("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getAddress().getPort() + "/helios.jar");
+        dest = new File(folder.getRoot(), "helios.jar");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void splitsIntoRanges() throws IOException {
+        SegmentedDownloader downloader = new SegmentedDownloader(url, dest);
+        downloader.setExpectedHash(sha256(body));
+        downloader.download(null);
+
+        assertArrayEquals(body, Files.readAllBytes(dest.toPath()));
+        assertEquals(sha256(body), downloader.getHash());
+        int segment = SIZE / 4;
+        List<String> ranges = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ranges.add("GET bytes=" + i * segment + "-" + ((i + 1) * segment - 1));
+        }
+        assertEquals(ranges, sorted(requests.subList(1, requests.size())));
+        assertLeftNothingBehind();
+    }
+
+    @Test
+    public void resumesFromJournal() throws IOException {
+        limit = 4096;
+        try {
+            new SegmentedDownloader(url, dest).download(null);
+            fail("Every range was cut short");
+        } catch (IOException expected) {
+        }
+        assertTrue(new File(dest.getPath() + ".part.journal").exists());
+        assertFalse(dest.exists());
+
+        limit = 0;
+        requests.clear();
+        SegmentedDownloader downloader = new SegmentedDownloader(url, dest);
+        downloader.setExpectedHash(sha256(body));
+        downloader.download(null);
+
+        assertArrayEquals(body, Files.readAllBytes(dest.toPath()));
+        for (String request : requests.subList(1, requests.size())) {
+            Matcher matcher = RANGE.matcher(request);
+            assertTrue(request, matcher.find());
+            // Each segment got at least one cut short response the first time round
+            assertTrue(request, Long.parseLong(matcher.group(1)) % (SIZE / 4) >= 4096);
+        }
+        assertLeftNothingBehind();
+    }
+
+    @Test
+    public void fallsBackWhenFileChanges() throws IOException {
+        // The file changes between the probe and the range requests, so If-Range no longer matches
+        etag = "\"b\"";
+        SegmentedDownloader downloader = new SegmentedDownloader(url, dest);
+        downloader.download(null);
+
+        assertArrayEquals(body, Files.readAllBytes(dest.toPath()));
+        assertTrue(requests.toString(), requests.contains("GET"));
+        assertLeftNothingBehind();
+    }
+
+    @Test
+    public void rejectsChecksumMismatch() throws IOException {
+        SegmentedDownloader downloader = new SegmentedDownloader(url, dest);
+        downloader.setExpectedHash(sha256(new byte[0]));
+        try {
+            downloader.download(null);
+            fail("The checksum doesn't match");
+        } catch (Transfers.ChecksumException expected) {
+        }
+        assertFalse(dest.exists());
+        assertLeftNothingBehind();
+    }
+
+    private void assertLeftNothingBehind() {
+        assertFalse(new File(dest.getPath() + ".part").exists());
+        assertFalse(new File(dest.getPath() + ".part.journal").exists());
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        requests.add(exchange.getRequestMethod() + (range != null ? " " + range : ""));
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.getResponseHeaders().set("ETag", headEtag);
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(body.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("ETag", etag);
+        Matcher matcher = range != null ? RANGE.matcher(range) : null;
+        if (matcher == null || !matcher.matches() || ifRange != null && !ifRange.equals(etag)) {
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+            return;
+        }
+        int start = Integer.parseInt(matcher.group(1));
+        int end = Integer.parseInt(matcher.group(2)) + 1;
+        if (limit > 0) {
+            end = Math.min(end, start + limit);
+        }
+        exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + body.length);
+        exchange.sendResponseHeaders(206, end - start);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body, start, end - start);
+        }
+    }
+
+    private static List<String> sorted(List<String> requests) {
+        String[] array = requests.toArray(new String[0]);
+        Arrays.sort(array, (a, b) -> Long.compare(start(a), start(b)));
+        return Arrays.asList(array);
+    }
+
+    private static long start(String request) {
+        Matcher matcher = RANGE.matcher(request);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    private static String sha256(byte[] data) {
+        return ArtifactStore.toHex(ArtifactStore.sha256().digest(data));
+    }
+}
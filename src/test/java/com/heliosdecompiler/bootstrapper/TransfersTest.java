@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.heliosdecompiler.bootstrapper;
+
+import net.dongliu.vcdiff.VcdiffEncoder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransfersTest {
+    private static final int SOURCE_SIZE = 16 * 1024 * 1024;
+    private static final int COPIES = 4;
+    private static final String MAX_HEAP = "-Xmx12m";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Decoding used to hold the source, the patch and the target in the heap at once. A build several times the size
+     * of the heap must still decode, so the patch is applied in a JVM whose heap is smaller than the source alone.
+     */
+    @Test
+    public void decodesBuildLargerThanHeap() throws Exception {
+        decodeInSmallHeap();
+    }
+
+    /**
+     * Files aren't mapped on Windows, which must not bring the whole source or patch onto the heap instead.
+     */
+    @Test
+    public void decodesBuildLargerThanHeapWithoutMapping() throws Exception {
+        decodeInSmallHeap("-Dos.name=Windows 10");
+    }
+
+    private void decodeInSmallHeap(String... options) throws Exception {
+        byte[] data = new byte[SOURCE_SIZE];
+        new Random(1).nextBytes(data);
+        File source = folder.newFile("source.jar");
+        Files.write(source.toPath(), data);
+
+        // The target repeats the source with a few bytes changed in each copy, which encodes to a small patch
+        File target = folder.newFile("target.jar");
+        MessageDigest digest = ArtifactStore.sha256();
+        try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(target)), digest)) {
+            for (int copy = 0; copy < COPIES; copy++) {
+                data[copy * 4096] ^= 1;
+                out.write(data);
+            }
+        }
+        String expected = ArtifactStore.toHex(digest.digest());
+        File patch = folder.newFile("delta.patch");
+        VcdiffEncoder.encode(source, target, patch);
+        assertTrue("Patch should be much smaller than the target", patch.length() < target.length() / 16);
+
+        File decoded = new File(folder.getRoot(), "decoded.jar");
+        File output = folder.newFile("output.txt");
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add(MAX_HEAP);
+        command.addAll(Arrays.asList(options));
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), Decode.class.getName(),
+                source.getPath(), patch.getPath(), decoded.getPath()));
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(output)
+                .start();
+        assertTrue("Decoding timed out", process.waitFor(2, TimeUnit.MINUTES));
+        String log = new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8);
+        assertEquals(log, 0, process.exitValue());
+        assertEquals(expected, log.trim());
+        assertEquals(target.length(), decoded.length());
+    }
+
+    public static class Decode {
+        public static void main(String[] args) throws Exception {
+            System.out.println(Transfers.decode(new File(args[0]), new File(args[1]), new File(args[2])));
+        }
+    }
+}
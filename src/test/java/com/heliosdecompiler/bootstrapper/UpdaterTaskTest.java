@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Sam Sun <me@samczsun.com>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.heliosdecompiler.bootstrapper;
+
+import net.dongliu.vcdiff.VcdiffEncoder;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UpdaterTaskTest {
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static FakeCi ci;
+    private static byte[] first;
+    private static byte[] second;
+    private static byte[] fourth;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        ci = new FakeCi();
+        ci.install(folder.newFolder("home"));
+        first = FakeCi.jar(1);
+        second = FakeCi.jar(2);
+        fourth = FakeCi.jar(4);
+
+        ci.addBuild(1, "SUCCESS");
+        ci.addArtifact(1, Bootstrapper.JAR_NAME, first, true);
+        ci.addBuild(2, "SUCCESS");
+        ci.addArtifact(2, Bootstrapper.JAR_NAME, second, true);
+        ci.addArtifact(2, PatchPipeline.DELTA, delta(first, second), true);
+        // A failed build publishes nothing
+        ci.addBuild(3, "FAILURE");
+        // A build without a patch can only be downloaded in full
+        ci.addBuild(4, "SUCCESS");
+        ci.addArtifact(4, Bootstrapper.JAR_NAME, fourth, true);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        ci.close();
+    }
+
+    @Test
+    public void doesNotStageSkippedLatestBuild() throws IOException {
+        File install = new File(folder.newFolder(), "helios.jar");
+        UpdaterTask task = new UpdaterTask(installFirst(install), Channel.STABLE, install);
+
+        assertFalse(task.stage(3));
+
+        // Build 2 was patched on the way, but must not have been recorded as build 3
+        ArtifactStore store = new ArtifactStore(Bootstrapper.DATA_DIR);
+        assertNull(store.getBuild(3));
+        assertEquals(-1, store.applyStaged(1, install));
+        assertEquals(FakeCi.sha256(first), FakeCi.sha256(Files.readAllBytes(install.toPath())));
+    }
+
+    @Test
+    public void downloadsLatestBuildWithoutPatch() throws IOException {
+        File install = new File(folder.newFolder(), "helios.jar");
+        UpdaterTask task = new UpdaterTask(installFirst(install), Channel.STABLE, install);
+
+        assertTrue(task.stage(4));
+
+        ArtifactStore store = new ArtifactStore(Bootstrapper.DATA_DIR);
+        assertEquals(FakeCi.sha256(fourth), store.getBuild(4));
+        assertTrue(ci.requests.contains("GET 2/artifact/target/" + PatchPipeline.DELTA));
+        assertEquals(4, store.applyStaged(1, install));
+        assertEquals(FakeCi.sha256(fourth), FakeCi.sha256(Files.readAllBytes(install.toPath())));
+    }
+
+    private static HeliosData installFirst(File install) throws IOException {
+        File file = new File(folder.getRoot(), "first.jar");
+        Files.write(file.toPath(), first);
+        ArtifactStore store = Bootstrapper.store();
+        HeliosData data = new HeliosData();
+        data.buildNumber = 1;
+        data.hash = store.put(file, 1, FakeCi.sha256(first));
+        store.activate(data.hash, install);
+        return data;
+    }
+
+    private static byte[] delta(byte[] source, byte[] target) throws Exception {
+        File sourceFile = folder.newFile();
+        File targetFile = folder.newFile();
+        File patch = folder.newFile();
+        Files.write(sourceFile.toPath(), source);
+        Files.write(targetFile.toPath(), target);
+        VcdiffEncoder.encode(sourceFile, targetFile, patch);
+        return Files.readAllBytes(patch.toPath());
+    }
+}